@@ -0,0 +1,174 @@
+package unice.benchmark;
+
+import unice.livingEntities.HealthStatusType;
+import unice.map.NeighbourhoodType;
+import unice.simulator.Simulator;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checks that a step of the simulation allocates no more memory than declared, so that the
+ * allocations removed from the hot paths do not come back. Each budget is a fixed, seeded
+ * headless simulation, run for some steps so that its buffers reach their size, then measured
+ * step by step with the allocation counters of the threads (all the threads, so that the ones
+ * of the TileStepper are accounted). The steps are measured while the outbreak spreads, so that
+ * the infections and the health status transitions are accounted: a budget fails if no entity
+ * is contagious at a measured step. The budget of the sequential and synchronous steps is zero.
+ * Usage: java unice.benchmark.AllocationBudget, the exit code being 1 if a budget fails.
+ *
+ * @author Romain Chaudron
+ */
+public class AllocationBudget {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // More than a turn of the transition wheel, whose buckets grow during the first turn. The initial
+    // outbreak of the budgets lasts more than WARMUP_STEPS + MEASURED_STEPS steps.
+    private static final int WARMUP_STEPS = 80;
+    private static final int MEASURED_STEPS = 70;
+    private static final long SEED = 42;
+
+    /**
+     * A simulation, and the bytes its steps may allocate.
+     */
+    public static class Budget {
+        private String name;
+        private int size;
+        private NeighbourhoodType neighbourhoodType;
+        private boolean synchronous;
+        private int threads;
+        private long bytesPerStep;
+
+        /**
+         * Create a budget.
+         *
+         * @param theName
+         *            The name of the budget, in the report.
+         * @param theSize
+         *            The width and depth of the map, populated with the default density.
+         * @param theNeighbourhoodType
+         *            The neighbourhood type of the map.
+         * @param theSynchronous
+         *            true to use synchronous steps.
+         * @param theThreads
+         *            The number of threads running a step.
+         * @param theBytesPerStep
+         *            The maximum number of bytes allocated by a step.
+         */
+        public Budget(String theName, int theSize, NeighbourhoodType theNeighbourhoodType, boolean theSynchronous,
+                      int theThreads, long theBytesPerStep) {
+            name = theName;
+            size = theSize;
+            neighbourhoodType = theNeighbourhoodType;
+            synchronous = theSynchronous;
+            threads = theThreads;
+            bytesPerStep = theBytesPerStep;
+        }
+    }
+
+    private List<Budget> budgets = new ArrayList<>();
+
+    /**
+     * Create the checker with the budgets of the project.
+     */
+    public AllocationBudget() {
+        budgets.add(new Budget("sequential FOUR", 200, NeighbourhoodType.FOUR, false, 1, 0));
+        budgets.add(new Budget("sequential HEIGHT", 200, NeighbourhoodType.HEIGHT, false, 1, 0));
+        budgets.add(new Budget("synchronous HEIGHT", 200, NeighbourhoodType.HEIGHT, true, 1, 0));
+        budgets.add(new Budget("sequential sparse map", 1000, NeighbourhoodType.HEIGHT, false, 1, 0));
+        // The TileStepper creates a task for each range of tiles
+        budgets.add(new Budget("4 threads HEIGHT", 200, NeighbourhoodType.HEIGHT, true, 4, 4096));
+    }
+
+    /**
+     * Add a budget to check.
+     *
+     * @param budget
+     *            The budget.
+     */
+    public void add(Budget budget) {
+        budgets.add(budget);
+    }
+
+    /**
+     * Measure the steps of a budget.
+     *
+     * @param budget
+     *            The budget.
+     * @return the largest number of bytes allocated by a measured step
+     * @throws IllegalStateException
+     *            If no entity is contagious at a measured step.
+     */
+    public long measure(Budget budget) {
+        Simulator simulator = Workloads.newSimulator(budget.size, budget.neighbourhoodType, 1.0, SEED);
+        try {
+            simulator.setSynchronous(budget.synchronous);
+            simulator.setParallelism(budget.threads);
+            for (int i = 0; i < WARMUP_STEPS; i++) {
+                simulator.simulateOneStep();
+            }
+            long maxBytes = 0;
+            for (int i = 0; i < MEASURED_STEPS; i++) {
+                long[] threadIds = THREADS.getAllThreadIds();
+                // Reading the counters allocates the array of the results
+                long overhead = -allocatedBytes(threadIds);
+                long before = allocatedBytes(threadIds);
+                overhead += before;
+                simulator.simulateOneStep();
+                maxBytes = Math.max(maxBytes, allocatedBytes(threadIds) - before - overhead);
+                if (simulator.getMap().getEntityStore().count(HealthStatusType.CONTAGIOUS) == 0) {
+                    throw new IllegalStateException("The outbreak of " + budget.name + " is over at the step "
+                            + simulator.getStep() + ", before the end of the measured steps");
+                }
+            }
+            return maxBytes;
+        } finally {
+            simulator.setParallelism(1);
+        }
+    }
+
+    /**
+     * Returns the bytes allocated by some threads since they started, the threads of the step
+     * being started before it.
+     */
+    private static long allocatedBytes(long[] threadIds) {
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(threadIds)) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Check all the budgets, printing a line for each one.
+     *
+     * @return true if no budget is exceeded
+     */
+    public boolean check() {
+        boolean passed = true;
+        for (Budget budget : budgets) {
+            long bytes;
+            try {
+                bytes = measure(budget);
+            } catch (IllegalStateException e) {
+                System.out.println("FAIL " + e.getMessage());
+                passed = false;
+                continue;
+            }
+            boolean ok = bytes <= budget.bytesPerStep;
+            passed &= ok;
+            System.out.println(String.format(Locale.ROOT, "%-4s %-24s %8d B/step (budget %d)",
+                    ok ? "OK" : "FAIL", budget.name, bytes, budget.bytesPerStep));
+        }
+        return passed;
+    }
+
+    public static void main(String[] args) {
+        if (!new AllocationBudget().check()) {
+            System.exit(1);
+        }
+    }
+}
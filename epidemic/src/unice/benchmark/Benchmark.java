@@ -0,0 +1,265 @@
+package unice.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Measures the time and the memory allocated by an operation, in the way of JMH (the project
+ * using no library): the operation is first run during some warmup iterations, so that the JIT
+ * compiles it, then during some measured iterations of a fixed duration. The memory allocated is
+ * given by the allocation counter of the thread, and the garbage collections by the collectors,
+ * so that the operation must run on the calling thread to be fully accounted.
+ *
+ * @author Romain Chaudron
+ */
+public class Benchmark {
+    /**
+     * An operation to measure. It returns a value depending on its work, which is consumed by the
+     * benchmark so that the JIT can not remove the work.
+     */
+    public interface Operation {
+        long run();
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationNanos = 200_000_000L;
+    private long sink;          // Consumes the values of the operations
+
+    /**
+     * Define the number of warmup iterations, not measured.
+     *
+     * @param theIterations
+     *            The number of iterations.
+     */
+    public void setWarmupIterations(int theIterations) {
+        warmupIterations = theIterations;
+    }
+
+    /**
+     * Define the number of measured iterations.
+     *
+     * @param theIterations
+     *            The number of iterations, at least 1.
+     */
+    public void setIterations(int theIterations) {
+        iterations = Math.max(1, theIterations);
+    }
+
+    /**
+     * Define the duration of an iteration. An iteration runs the operation until it lasts that long.
+     *
+     * @param millis
+     *            The duration in milliseconds.
+     */
+    public void setIterationTime(long millis) {
+        iterationNanos = millis * 1_000_000L;
+    }
+
+    /**
+     * Measure an operation.
+     *
+     * @param name
+     *            The name of the operation.
+     * @param parameters
+     *            The parameters of the operation, as shown in the report (ex: "size=500").
+     * @param operation
+     *            The operation.
+     * @return the measures
+     */
+    public Result measure(String name, String parameters, Operation operation) {
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(operation);
+        }
+
+        double[] nanosPerOperation = new double[iterations];
+        long operations = 0;
+        long elapsed = 0;
+        long gcCount = -gcCount();
+        long gcMillis = -gcMillis();
+        long allocated = -allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long count = runIteration(operation);
+            long time = System.nanoTime() - start;
+            nanosPerOperation[i] = (double) time / count;
+            operations += count;
+            elapsed += time;
+        }
+        allocated += allocatedBytes();
+        gcCount += gcCount();
+        gcMillis += gcMillis();
+        return new Result(name, parameters, nanosPerOperation, (double) allocated / operations,
+                allocated * 1e9 / elapsed, gcCount, gcMillis);
+    }
+
+    /**
+     * Run the operation during an iteration, by batches growing until a batch lasts a tenth of
+     * the iteration, so that reading the clock costs nothing.
+     *
+     * @return the number of operations run
+     */
+    private long runIteration(Operation operation) {
+        long start = System.nanoTime();
+        long end = start + iterationNanos;
+        long count = 0;
+        int batch = 1;
+        long now = start;
+        while (now < end) {
+            for (int i = 0; i < batch; i++) {
+                sink += operation.run();
+            }
+            count += batch;
+            long previous = now;
+            now = System.nanoTime();
+            if (now - previous < iterationNanos / 10 && batch < (1 << 30)) batch *= 2;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the calling thread since it started.
+     *
+     * @return the number of bytes
+     */
+    public static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the number of garbage collections since the virtual machine started.
+     *
+     * @return the number of collections
+     */
+    public static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Returns the time spent in garbage collections since the virtual machine started.
+     *
+     * @return the time in milliseconds
+     */
+    public static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * The measures of an operation.
+     */
+    public static class Result {
+        private String name;
+        private String parameters;
+        private double nanosPerOperation;
+        private double error;               // Half width of the 95% confidence interval of the time
+        private double bytesPerOperation;
+        private double allocationRate;      // Bytes allocated per second
+        private long gcCount;
+        private long gcMillis;
+
+        Result(String theName, String theParameters, double[] theNanosPerOperation, double theBytesPerOperation,
+               double theAllocationRate, long theGcCount, long theGcMillis) {
+            name = theName;
+            parameters = theParameters;
+            double sum = 0;
+            for (double nanos : theNanosPerOperation) sum += nanos;
+            nanosPerOperation = sum / theNanosPerOperation.length;
+            double squares = 0;
+            for (double nanos : theNanosPerOperation) squares += (nanos - nanosPerOperation) * (nanos - nanosPerOperation);
+            error = theNanosPerOperation.length < 2 ? 0
+                    : 1.96 * Math.sqrt(squares / (theNanosPerOperation.length - 1) / theNanosPerOperation.length);
+            bytesPerOperation = theBytesPerOperation;
+            allocationRate = theAllocationRate;
+            gcCount = theGcCount;
+            gcMillis = theGcMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getParameters() {
+            return parameters;
+        }
+
+        /**
+         * @return the mean time of an operation in nanoseconds
+         */
+        public double getNanosPerOperation() {
+            return nanosPerOperation;
+        }
+
+        /**
+         * @return the half width of the 95% confidence interval of the time, in nanoseconds
+         */
+        public double getError() {
+            return error;
+        }
+
+        /**
+         * @return the mean number of bytes allocated by an operation
+         */
+        public double getBytesPerOperation() {
+            return bytesPerOperation;
+        }
+
+        /**
+         * @return the number of bytes allocated per second
+         */
+        public double getAllocationRate() {
+            return allocationRate;
+        }
+
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        public long getGcMillis() {
+            return gcMillis;
+        }
+
+        /**
+         * Returns the header of the lines of toString.
+         *
+         * @return the header
+         */
+        public static String header() {
+            return String.format(Locale.ROOT, "%-36s %-28s %14s %10s %12s %12s %6s %8s",
+                    "Benchmark", "Parameters", "ns/op", "error", "B/op", "MB/s", "gc", "gc ms");
+        }
+
+        /**
+         * Returns the measures on a line, as a column of the table starting with header.
+         *
+         * @return the measures
+         */
+        public String toString() {
+            return String.format(Locale.ROOT, "%-36s %-28s %14.2f %10.2f %12.1f %12.1f %6d %8d",
+                    name, parameters, nanosPerOperation, error, bytesPerOperation, allocationRate / 1e6,
+                    gcCount, gcMillis);
+        }
+
+        /**
+         * Returns the measures as a line of CSV, with the columns of header.
+         *
+         * @return the measures
+         */
+        public String toCsv() {
+            return String.format(Locale.ROOT, "%s,%s,%.3f,%.3f,%.2f,%.1f,%d,%d",
+                    name, parameters.replace(',', ' '), nanosPerOperation, error, bytesPerOperation,
+                    allocationRate, gcCount, gcMillis);
+        }
+    }
+}
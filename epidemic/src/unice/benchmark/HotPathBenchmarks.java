@@ -0,0 +1,188 @@
+package unice.benchmark;
+
+import unice.livingEntities.EntityStore;
+import unice.livingEntities.HealthStatusType;
+import unice.livingEntities.LivingEntity;
+import unice.livingEntities.Person;
+import unice.livingEntities.Pig;
+import unice.map.Location;
+import unice.map.Map;
+import unice.map.NeighbourhoodType;
+import unice.random.RandomStream;
+import unice.simulator.Simulator;
+import unice.virus.Virus;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro benchmarks of the hot paths of a step: the neighbourhood queries of the map (with the
+ * list of locations, and with the indices of the cells used by the entities), the infection check
+ * of the viruses, the action of the entities, and a whole step. Each one is measured on headless
+ * simulations of several map sizes and population densities, giving the time and the memory
+ * allocated by an operation (see Benchmark).
+ * Usage: java unice.benchmark.HotPathBenchmarks [sizes [densities [csvFile]]]
+ * where sizes and densities are lists separated by commas (default: 50,500,2000 and 0.5,1,2).
+ *
+ * @author Romain Chaudron
+ */
+public class HotPathBenchmarks {
+    // Number of locations and entities the operations go through.
+    private static final int SAMPLES = 1024;
+    private static final long SEED = 42;
+
+    private Benchmark benchmark = new Benchmark();
+    private List<Benchmark.Result> results = new ArrayList<>();
+
+    /**
+     * Measure all the operations on a map of the given size and density.
+     *
+     * @param size
+     *            The width and depth of the map.
+     * @param density
+     *            The factor of the creation probabilities (see Workloads.withDensity).
+     */
+    public void run(int size, double density) {
+        for (NeighbourhoodType neighbourhoodType : NeighbourhoodType.values()) {
+            String parameters = "size=" + size + " density=" + density + " " + neighbourhoodType;
+            measureMap(Workloads.newSimulator(size, neighbourhoodType, density, SEED), parameters);
+        }
+        String parameters = "size=" + size + " density=" + density + " " + NeighbourhoodType.HEIGHT;
+        measureEntities(Workloads.newSimulator(size, NeighbourhoodType.HEIGHT, density, SEED), parameters);
+
+        final Simulator simulator = Workloads.newSimulator(size, NeighbourhoodType.HEIGHT, density, SEED);
+        measure("Simulator.simulateOneStep", parameters, () -> {
+            simulator.simulateOneStep();
+            return simulator.getStep();
+        });
+    }
+
+    /**
+     * Measure the neighbourhood queries of the map.
+     */
+    private void measureMap(Simulator simulator, String parameters) {
+        final Map map = simulator.getMap();
+        final RandomStream random = new RandomStream(SEED);
+        final Location[] locations = new Location[SAMPLES];
+        final long[] cells = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int x = random.nextInt(map.getWidth());
+            int y = random.nextInt(map.getDepth());
+            locations[i] = new Location(x, y);
+            cells[i] = map.getCellIndex(x, y);
+        }
+        final long[] neighbours = new long[8];
+        final int[] next = new int[1];
+
+        measure("Map.getNeighbourhoodLocations", parameters, () -> {
+            int i = next[0]++ & (SAMPLES - 1);
+            return map.getNeighbourhoodLocations(locations[i], i).size();
+        });
+        measure("Map.getFreeNeigbourhoodLocations", parameters, () -> {
+            int i = next[0]++ & (SAMPLES - 1);
+            return map.getFreeNeigbourhoodLocations(locations[i], i).size();
+        });
+        measure("Map.findSpeciesLocations", parameters, () -> {
+            int i = next[0]++ & (SAMPLES - 1);
+            return map.findSpeciesLocations(map.getNeighbourhoodLocations(locations[i], i), Pig.class).size();
+        });
+        measure("Map.getNeighbourCells", parameters, () -> {
+            int i = next[0]++ & (SAMPLES - 1);
+            return map.getNeighbourCells(cells[i], i, neighbours);
+        });
+        measure("Map.getFreeNeighbourCells", parameters, () -> {
+            int i = next[0]++ & (SAMPLES - 1);
+            return map.getFreeNeighbourCells(cells[i], i, neighbours);
+        });
+        measure("Map.findSpeciesCells", parameters, () -> {
+            int i = next[0]++ & (SAMPLES - 1);
+            int count = map.getNeighbourCells(cells[i], i, neighbours);
+            return map.findSpeciesCells(neighbours, count, Pig.class);
+        });
+    }
+
+    /**
+     * Measure the infection check and the action of the entities.
+     */
+    private void measureEntities(Simulator simulator, String parameters) {
+        EntityStore store = simulator.getMap().getEntityStore();
+        final Virus virus = simulator.getScenario().getH1N1Virus();
+        final LivingEntity[] entities = new LivingEntity[SAMPLES];
+        final List<LivingEntity> persons = new ArrayList<>();
+        for (int id = 0; id < store.size(); id++) {
+            LivingEntity entity = store.getEntity(id);
+            entities[id & (SAMPLES - 1)] = entity;
+            if (entity instanceof Person) persons.add(entity);
+        }
+        final int[] next = new int[1];
+
+        measure("Virus.canInfectEntity", parameters, () -> {
+            return virus.canInfectEntity(entities[next[0]++ & (SAMPLES - 1)]) ? 1 : 0;
+        });
+        if (!persons.isEmpty()) {
+            measure("Human.act (move)", parameters, () -> {
+                LivingEntity person = persons.get(next[0]++ % persons.size());
+                person.act();
+                return person.getId();
+            });
+        }
+        // Run the simulation until the initial infections become contagious, the contagious entities
+        // staying so while they act, as the simulation does not go on
+        for (int i = 0; i < 100 && store.count(HealthStatusType.CONTAGIOUS) == 0; i++) {
+            simulator.simulateOneStep();
+        }
+        final List<LivingEntity> contagious = new ArrayList<>();
+        for (int id = 0; id < store.size(); id++) {
+            LivingEntity entity = store.getEntity(id);
+            if (entity.getHealthStatus() == HealthStatusType.CONTAGIOUS) contagious.add(entity);
+        }
+        if (!contagious.isEmpty()) {
+            measure("LivingEntity.act (infect)", parameters, () -> {
+                LivingEntity entity = contagious.get(next[0]++ % contagious.size());
+                entity.act();
+                return entity.getId();
+            });
+        }
+    }
+
+    private void measure(String name, String parameters, Benchmark.Operation operation) {
+        Benchmark.Result result = benchmark.measure(name, parameters, operation);
+        results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * Returns the measures of all the operations run.
+     *
+     * @return the measures
+     */
+    public List<Benchmark.Result> getResults() {
+        return results;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String[] sizes = (args.length > 0 ? args[0] : "50,500,2000").split(",");
+        String[] densities = (args.length > 1 ? args[1] : "0.5,1,2").split(",");
+
+        HotPathBenchmarks benchmarks = new HotPathBenchmarks();
+        System.out.println(Benchmark.Result.header());
+        for (String size : sizes) {
+            for (String density : densities) {
+                benchmarks.run(Integer.parseInt(size.trim()), Double.parseDouble(density.trim()));
+            }
+        }
+
+        if (args.length > 2) {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(args[2])))) {
+                out.println("benchmark,parameters,nsPerOp,error,bytesPerOp,bytesPerSecond,gcCount,gcMillis");
+                for (Benchmark.Result result : benchmarks.getResults()) {
+                    out.println(result.toCsv());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package unice.benchmark;
+
+import unice.experiment.Statistics;
+import unice.livingEntities.HealthStatusType;
+import unice.map.NeighbourhoodType;
+import unice.simulator.Simulator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Macro benchmark of whole simulations, to find where the simulator stops scaling: runs headless
+ * simulations over a matrix of map sizes, densities, neighbourhood types and numbers of threads,
+ * and reports for each one the steps per second, the quantiles of the time of a step, the peak
+ * heap and the time spent in garbage collections. All the steps are synchronous, so that the
+ * simulations only differ by their number of threads.
+ * <p>
+ * The report is a CSV file with one line per simulation, in the order of the matrix, so that two
+ * reports of different versions can be compared line by line.
+ * <p>
+ * A soak run instead runs a single simulation for a long time, writing a line every interval with
+ * the heap used after a garbage collection, which must stay stable.
+ * <p>
+ * Usage: java unice.benchmark.ScalingBenchmark [name=value...] with the names:
+ * sizes (default 50,200,1000,4000), densities (0.5,1,2), neighbourhoods (FOUR,HEIGHT),
+ * threads (1 and the number of cores), steps (200), warmup (20), seed (42), report (scaling.csv),
+ * soak (duration of a soak run in minutes, 0 for none), interval (seconds between two lines of a
+ * soak run, 60).
+ *
+ * @author Romain Chaudron
+ */
+public class ScalingBenchmark {
+    private static final String HEADER = "size,density,neighbourhood,threads,steps,stepsPerSecond,"
+            + "p50Micros,p99Micros,maxMicros,peakHeapMB,gcCount,gcMillis,entities,dead";
+
+    private int steps = 200;
+    private int warmupSteps = 20;
+    private long seed = 42;
+
+    /**
+     * Define the number of steps measured for each simulation.
+     *
+     * @param theSteps
+     *            The number of steps.
+     */
+    public void setSteps(int theSteps) {
+        steps = theSteps;
+    }
+
+    /**
+     * Define the number of steps run before measuring, so that the JIT compiles them.
+     *
+     * @param theSteps
+     *            The number of steps.
+     */
+    public void setWarmupSteps(int theSteps) {
+        warmupSteps = theSteps;
+    }
+
+    /**
+     * Define the seed of the simulations.
+     *
+     * @param theSeed
+     *            The seed.
+     */
+    public void setSeed(long theSeed) {
+        seed = theSeed;
+    }
+
+    /**
+     * Run and measure a simulation.
+     *
+     * @param size
+     *            The width and depth of the map.
+     * @param density
+     *            The factor of the creation probabilities (see Workloads.withDensity).
+     * @param neighbourhoodType
+     *            The neighbourhood type of the map.
+     * @param threads
+     *            The number of threads running a step.
+     * @return the line of the report
+     */
+    public String run(int size, double density, NeighbourhoodType neighbourhoodType, int threads) {
+        resetPeakHeap();
+        Simulator simulator = Workloads.newSimulator(size, neighbourhoodType, density, seed);
+        try {
+            simulator.setSynchronous(true);
+            simulator.setParallelism(threads);
+            for (int i = 0; i < warmupSteps; i++) {
+                simulator.simulateOneStep();
+            }
+
+            Statistics stepNanos = new Statistics();
+            long gcCount = -Benchmark.gcCount();
+            long gcMillis = -Benchmark.gcMillis();
+            long start = System.nanoTime();
+            for (int i = 0; i < steps; i++) {
+                long stepStart = System.nanoTime();
+                simulator.simulateOneStep();
+                stepNanos.add(System.nanoTime() - stepStart);
+            }
+            long elapsed = System.nanoTime() - start;
+            gcCount += Benchmark.gcCount();
+            gcMillis += Benchmark.gcMillis();
+
+            return String.format(Locale.ROOT, "%d,%s,%s,%d,%d,%.2f,%.1f,%.1f,%.1f,%.1f,%d,%d,%d,%d",
+                    size, density, neighbourhoodType, threads, steps, steps * 1e9 / elapsed,
+                    Math.min(stepNanos.getQuantile(0.5), stepNanos.getMax()) / 1e3,
+                    Math.min(stepNanos.getQuantile(0.99), stepNanos.getMax()) / 1e3,
+                    stepNanos.getMax() / 1e3, getPeakHeap() / 1e6, gcCount, gcMillis,
+                    simulator.getMap().getEntityStore().size(),
+                    simulator.getMap().getEntityStore().count(HealthStatusType.DEAD));
+        } finally {
+            simulator.setParallelism(1);
+        }
+    }
+
+    /**
+     * Run a simulation for a long time, checking that its memory is stable.
+     *
+     * @param size
+     *            The width and depth of the map.
+     * @param density
+     *            The factor of the creation probabilities (see Workloads.withDensity).
+     * @param neighbourhoodType
+     *            The neighbourhood type of the map.
+     * @param threads
+     *            The number of threads running a step.
+     * @param minutes
+     *            The duration of the run.
+     * @param intervalSeconds
+     *            The time between two lines of the report.
+     * @param out
+     *            The report: one line every interval.
+     */
+    public void soak(int size, double density, NeighbourhoodType neighbourhoodType, int threads,
+                     long minutes, long intervalSeconds, PrintWriter out) {
+        out.println("elapsedSeconds,step,stepsPerSecond,heapAfterGcMB,gcCount,gcMillis");
+        Simulator simulator = Workloads.newSimulator(size, neighbourhoodType, density, seed);
+        try {
+            simulator.setSynchronous(true);
+            simulator.setParallelism(threads);
+            long start = System.nanoTime();
+            long end = start + minutes * 60_000_000_000L;
+            long nextLine = start;
+            long lineStart = start;
+            int lineStep = simulator.getStep();
+            long now = start;
+            while (now < end) {
+                simulator.simulateOneStep();
+                now = System.nanoTime();
+                if (now >= nextLine) {
+                    System.gc();
+                    long used = 0;
+                    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                        if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null) {
+                            used += pool.getCollectionUsage().getUsed();
+                        }
+                    }
+                    double stepsPerSecond = now == lineStart ? 0 : (simulator.getStep() - lineStep) * 1e9 / (now - lineStart);
+                    out.println(String.format(Locale.ROOT, "%d,%d,%.2f,%.1f,%d,%d", (now - start) / 1_000_000_000L,
+                            simulator.getStep(), stepsPerSecond, used / 1e6, Benchmark.gcCount(), Benchmark.gcMillis()));
+                    out.flush();
+                    nextLine = now + intervalSeconds * 1_000_000_000L;
+                    lineStart = System.nanoTime();
+                    lineStep = simulator.getStep();
+                }
+            }
+        } finally {
+            simulator.setParallelism(1);
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static String get(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(name + "=")) return arg.substring(name.length() + 1);
+        }
+        return defaultValue;
+    }
+
+    private static List<String> list(String[] args, String name, String defaultValue) {
+        List<String> values = new ArrayList<>();
+        for (String value : get(args, name, defaultValue).split(",")) {
+            if (!value.trim().isEmpty()) values.add(value.trim());
+        }
+        return values;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ScalingBenchmark benchmark = new ScalingBenchmark();
+        benchmark.setSteps(Integer.parseInt(get(args, "steps", "200")));
+        benchmark.setWarmupSteps(Integer.parseInt(get(args, "warmup", "20")));
+        benchmark.setSeed(Long.parseLong(get(args, "seed", "42")));
+        List<String> sizes = list(args, "sizes", "50,200,1000,4000");
+        List<String> densities = list(args, "densities", "0.5,1,2");
+        List<String> neighbourhoods = list(args, "neighbourhoods", "FOUR,HEIGHT");
+        List<String> threads = list(args, "threads", "1," + Runtime.getRuntime().availableProcessors());
+        long soakMinutes = Long.parseLong(get(args, "soak", "0"));
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(get(args, "report", "scaling.csv"))))) {
+            if (soakMinutes > 0) {
+                benchmark.soak(Integer.parseInt(sizes.get(0)), Double.parseDouble(densities.get(0)),
+                        NeighbourhoodType.valueOf(neighbourhoods.get(0)), Integer.parseInt(threads.get(0)),
+                        soakMinutes, Long.parseLong(get(args, "interval", "60")), out);
+                return;
+            }
+            out.println(HEADER);
+            System.out.println(HEADER);
+            for (String size : sizes) {
+                for (String density : densities) {
+                    for (String neighbourhood : neighbourhoods) {
+                        for (String threadCount : threads) {
+                            String line = benchmark.run(Integer.parseInt(size), Double.parseDouble(density),
+                                    NeighbourhoodType.valueOf(neighbourhood), Integer.parseInt(threadCount));
+                            out.println(line);
+                            out.flush();
+                            System.out.println(line);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package unice.benchmark;
+
+import unice.map.NeighbourhoodType;
+import unice.simulator.Scenario;
+import unice.simulator.Simulator;
+
+/**
+ * The simulations measured by the benchmarks: headless, seeded, and populated with a density
+ * given as a factor of the default creation probabilities of the scenario.
+ *
+ * @author Romain Chaudron
+ */
+final class Workloads {
+    // Parameters giving the density of the population.
+    private static final Scenario.Parameter[] CREATION_PROBABILITIES = {
+            Scenario.Parameter.PIG_CREATION_PROBABILITY,
+            Scenario.Parameter.CHICKEN_CREATION_PROBABILITY,
+            Scenario.Parameter.DUCK_CREATION_PROBABILITY,
+            Scenario.Parameter.PERSON_CREATION_PROBABILITY
+    };
+
+    private Workloads() {
+    }
+
+    /**
+     * Returns the default scenario, with all the creation probabilities multiplied by a factor
+     * (at most 1).
+     *
+     * @param density
+     *            The factor of the creation probabilities (1 for the default population).
+     * @return the scenario
+     */
+    static Scenario withDensity(double density) {
+        double[] values = new double[CREATION_PROBABILITIES.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.min(1.0, Scenario.DEFAULT.get(CREATION_PROBABILITIES[i]) * density);
+        }
+        return Scenario.DEFAULT.with(CREATION_PROBABILITIES, values);
+    }
+
+    /**
+     * Create a headless simulation on a square map, populated.
+     *
+     * @param size
+     *            The width and depth of the map.
+     * @param neighbourhoodType
+     *            The neighbourhood type of the map.
+     * @param density
+     *            The factor of the creation probabilities (see withDensity).
+     * @param seed
+     *            The seed of the simulation.
+     * @return the simulation
+     */
+    static Simulator newSimulator(int size, NeighbourhoodType neighbourhoodType, double density, long seed) {
+        return new Simulator(size, size, neighbourhoodType, null, seed, withDensity(density));
+    }
+}
@@ -1,10 +1,12 @@
 package unice.display;
 
+import unice.livingEntities.Species;
 import unice.map.Map;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -20,7 +22,7 @@ import java.util.Set;
  * @author Loic Rose
  * @version 2011.07.31
  */
-public class GraphView implements SimulatorView {
+public class GraphView implements SimulatorView, RenderLoop.Renderer {
     private static final Color LIGHT_GRAY = new Color(0, 0, 0, 40);
 
     private static JFrame frame;
@@ -34,6 +36,8 @@ public class GraphView implements SimulatorView {
     private java.util.Map<Class, Color> colors;
     // A statistics object computing and storing simulation information
     private FieldStats stats;
+    // Draws the snapshots of the steps on the event dispatch thread
+    private RenderLoop renderLoop;
 
     /**
      * Constructor.
@@ -57,8 +61,7 @@ public class GraphView implements SimulatorView {
         } else {
             graph.newRun();
         }
-
-        // showStatus(0, null);
+        renderLoop = new RenderLoop(this, false, RenderLoop.DEFAULT_FRAME_RATE);
     }
 
     /**
@@ -79,7 +82,9 @@ public class GraphView implements SimulatorView {
      * line graph for two classes in the field. This view currently does not
      * work for more (or fewer) than exactly two classes. If the field contains
      * more than two different types of animal, only two of the classes will be
-     * plotted.
+     * plotted. The counts are captured and drawn later on the event dispatch
+     * thread (see RenderLoop), so that the simulation does not wait for the
+     * drawing.
      * 
      * @param step
      *            Which iteration step it is.
@@ -87,7 +92,17 @@ public class GraphView implements SimulatorView {
      *            The theMap whose status is to be displayed.
      */
     public void showStatus(int step, Map theMap) {
-        graph.update(step, theMap, stats);
+        renderLoop.publish(step, theMap);
+    }
+
+    /**
+     * Draw the counts of a snapshot, on the event dispatch thread.
+     * 
+     * @param snapshot
+     *            The snapshot of the field.
+     */
+    public void render(StepSnapshot snapshot) {
+        graph.update(snapshot, stats);
     }
 
     /**
@@ -100,10 +115,10 @@ public class GraphView implements SimulatorView {
     }
 
     /**
-     * Prepare for a new run.
+     * Prepare for a new run. The graph starts a new run once it is drawn, as
+     * the steps of the new run start again.
      */
     public void reset() {
-        graph.newRun();
     }
 
     /**
@@ -144,7 +159,8 @@ public class GraphView implements SimulatorView {
         // An internal image buffer that is used for painting. For
         // actual display, this image buffer is then copied to screen.
         private BufferedImage graphImage;
-        private int lastVal1, lastVal2,lastVal3,lastVal4;
+        private int[] lastVals = new int[4];    // Last y of each class
+        private int lastStep = -1;              // Last step drawn, -1 at the start of a run
         private int yMax;
 
         /**
@@ -154,10 +170,7 @@ public class GraphView implements SimulatorView {
             graphImage = new BufferedImage(width, height,
                     BufferedImage.TYPE_INT_RGB);
             clearImage();
-            lastVal1 = height;
-            lastVal2 = height;
-            lastVal3 = height;
-            lastVal4 = height;
+            Arrays.fill(lastVals, height);
             yMax = startMax;
         }
 
@@ -173,92 +186,55 @@ public class GraphView implements SimulatorView {
             g.setColor(Color.BLACK);
             g.drawLine(width - 4, 0, width - 4, height);
             g.drawLine(width - 2, 0, width - 2, height);
-            lastVal1 = height;
-            lastVal2 = height;
-            lastVal3 = height;
-            lastVal4 = height;
+            Arrays.fill(lastVals, height);
+            lastStep = -1;
             repaint();
         }
 
         /**
-         * Dispay a new point of data.
+         * Dispay a new point of data. The graph moves to the left by the
+         * number of steps since the previous point (the frames dropped by the
+         * render loop, and the idle steps skipped by the simulator), so that
+         * the time axis stays regular.
          */
-        public void update(int step, Map theMap, FieldStats stats) {
+        public void update(StepSnapshot snapshot, FieldStats stats) {
             if (classes.size() >= 4) {
-                Iterator<Class> it = classes.iterator();
-                Class class1 = it.next();
-                Class class2 = it.next();
-                Class class3 = it.next();
-                Class class4 = it.next();
-
-                stats.reset();
-                int count1 = stats.getPopulationCount(theMap, class1);
-                int count2 = stats.getPopulationCount(theMap, class2);
-                int count3 = stats.getPopulationCount(theMap, class3);
-                int count4 = stats.getPopulationCount(theMap, class4);
+                int step = snapshot.getStep();
+                if (step < lastStep) newRun();
 
                 Graphics g = graphImage.getGraphics();
 
                 int height = graphImage.getHeight();
                 int width = graphImage.getWidth();
 
-                // move graph one pixel to left
-                g.copyArea(1, 0, width - 1, height, -1, 0);
+                // move graph to the left
+                int shift = lastStep < 0 ? 1 : Math.max(1, Math.min(width - 3, step - lastStep));
+                g.copyArea(shift, 0, width - shift, height, -shift, 0);
+                lastStep = step;
 
-                // calculate y, check whether it's out of screen. scale down if
-                // necessary.
-                // Draw Class1
-                int y = height - ((height * count1) / yMax) - 1;
-                while (y < 0) {
-                    scaleDown();
-                    y = height - ((height * count1) / yMax) - 1;
-                }
-                g.setColor(LIGHT_GRAY);
-                g.drawLine(width - 2, y, width - 2, height);
-                g.setColor(colors.get(class1));
-                g.drawLine(width - 3, lastVal1, width - 2, y);
-                lastVal1 = y;
-                // Draw Class2
-                y = height - ((height * count2) / yMax) - 1;
-                while (y < 0) {
-                    scaleDown();
-                    y = height - ((height * count2) / yMax) - 1;
-                }
-                g.setColor(LIGHT_GRAY);
-                g.drawLine(width - 2, y, width - 2, height);
-                g.setColor(colors.get(class2));
-                g.drawLine(width - 3, lastVal2, width - 2, y);
-                lastVal2 = y;
-
-                // Draw Class3
-                y = height - ((height * count3) / yMax) - 1;
-                while (y < 0) {
-                    scaleDown();
-                    y = height - ((height * count3) / yMax) - 1;
-                }
-                g.setColor(LIGHT_GRAY);
-                g.drawLine(width - 2, y, width - 2, height);
-                g.setColor(colors.get(class3));
-                g.drawLine(width - 3, lastVal3, width - 2, y);
-                lastVal3 = y;
-
-                // Draw Class4
-                y = height - ((height * count4) / yMax) - 1;
-                while (y < 0) {
-                    scaleDown();
-                    y = height - ((height * count4) / yMax) - 1;
+                Iterator<Class> it = classes.iterator();
+                for (int i = 0; i < lastVals.length; i++) {
+                    Class theClass = it.next();
+                    int count = snapshot.countLiving(Species.of(theClass));
+
+                    // calculate y, check whether it's out of screen. scale
+                    // down if necessary.
+                    int y = height - ((height * count) / yMax) - 1;
+                    while (y < 0) {
+                        scaleDown();
+                        y = height - ((height * count) / yMax) - 1;
+                    }
+                    g.setColor(LIGHT_GRAY);
+                    g.fillRect(width - 1 - shift, y, shift, height - y);
+                    g.setColor(colors.get(theClass));
+                    g.drawLine(width - 2 - shift, lastVals[i], width - 2, y);
+                    lastVals[i] = y;
                 }
-                g.setColor(LIGHT_GRAY);
-                g.drawLine(width - 2, y, width - 2, height);
-                g.setColor(colors.get(class4));
-                g.drawLine(width - 3, lastVal4, width - 2, y);
-                lastVal4 = y;
 
-
-                repaintNow();
+                repaint();
 
                 stepLabel.setText("" + step);
-                countLabel.setText(stats.getPopulationDetails(theMap));
+                countLabel.setText(stats.getPopulationDetails(snapshot));
             }
         }
 
@@ -284,22 +260,13 @@ public class GraphView implements SimulatorView {
             g.drawImage(tmpImage, 0, oldTop, null);
 
             yMax = (int) (yMax / SCALE_FACTOR);
-            lastVal1 = oldTop + (int) (lastVal1 * SCALE_FACTOR);
-            lastVal2 = oldTop + (int) (lastVal2 * SCALE_FACTOR);
-            lastVal3 = oldTop + (int) (lastVal3 * SCALE_FACTOR);
-            lastVal4 = oldTop + (int) (lastVal4 * SCALE_FACTOR);
+            for (int i = 0; i < lastVals.length; i++) {
+                lastVals[i] = oldTop + (int) (lastVals[i] * SCALE_FACTOR);
+            }
 
             repaint();
         }
 
-        /**
-         * Cause immediate update of the panel.
-         */
-        public void repaintNow() {
-            paintImmediately(0, 0, graphImage.getWidth(),
-                    graphImage.getHeight());
-        }
-
         /**
          * Clear the image on this panel.
          */
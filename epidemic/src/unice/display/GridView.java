@@ -7,6 +7,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -18,7 +19,7 @@ import java.util.HashMap;
  * @author Loic Rose , Thomas Gillot, Romain Chaudron
  * @version 2011.07.31
  */
-public class GridView extends JFrame implements SimulatorView {
+public class GridView extends JFrame implements SimulatorView, RenderLoop.Renderer {
     // Colors used for empty locations.
     private static final Color EMPTY_COLOR = Color.white;
 
@@ -45,16 +46,18 @@ public class GridView extends JFrame implements SimulatorView {
     // A statistics object computing and storing simulation information
     private FieldStats stats;
 
-    private String speed;
+    // Written on the event dispatch thread, read by the simulation thread
+    private volatile String speed;
+    // Draws the snapshots of the steps on the event dispatch thread
+    private RenderLoop renderLoop;
 
     private JComboBox combo = new JComboBox();
     private JLabel label = new JLabel("Simulation speed");
 
     /**
-     * HashMap to know which color at which state and entity
+     * Colors of each health status (by ordinal), by species id, to know which color at which state and entity
      */
-    private HashMap<HealthStatusType,Integer> indice_state;
-    private HashMap<Class,Integer> indice_lb;
+    private Color[][] statusColors = new Color[Species.MAX_SPECIES][];
 
 
     /**
@@ -67,9 +70,6 @@ public class GridView extends JFrame implements SimulatorView {
      */
     public GridView(int height, int width) {
 
-        indice_state = new HashMap<>();
-        indice_lb = new HashMap<>();
-
         speed = "MEDIUM";
         stats = new FieldStats();
         colors = new HashMap<>();
@@ -116,15 +116,27 @@ public class GridView extends JFrame implements SimulatorView {
         /**
          * We add the different states and entity for each colors
          */
-        indice_state.put(HealthStatusType.HEALTHY,0);
-        indice_state.put(HealthStatusType.SICK,1);
-        indice_state.put(HealthStatusType.CONTAGIOUS,2);
-        indice_state.put(HealthStatusType.RECOVERING,3);
-
-        indice_lb.put(Person.class,0);
-        indice_lb.put(Chicken.class,1);
-        indice_lb.put(Duck.class,2);
-        indice_lb.put(Pig.class,3);
+        setStatusColors(Person.class, HUMANS_COLORS);
+        setStatusColors(Chicken.class, CHICKENS_COLORS);
+        setStatusColors(Duck.class, DUCKS_COLORS);
+        setStatusColors(Pig.class, PIGS_COLORS);
+
+        renderLoop = new RenderLoop(this, true, RenderLoop.DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * Define the colors of a class of Living Entity, one for each health status but DEAD
+     * @param livingEntityClass
+     * @param colorsByStatus the colors for HEALTHY, SICK, CONTAGIOUS and RECOVERING
+     */
+    private void setStatusColors(Class livingEntityClass, Color[] colorsByStatus) {
+        Color[] byOrdinal = new Color[HealthStatusType.values().length];
+        Arrays.fill(byOrdinal, UNKNOWN_COLOR);
+        byOrdinal[HealthStatusType.HEALTHY.ordinal()] = colorsByStatus[0];
+        byOrdinal[HealthStatusType.SICK.ordinal()] = colorsByStatus[1];
+        byOrdinal[HealthStatusType.CONTAGIOUS.ordinal()] = colorsByStatus[2];
+        byOrdinal[HealthStatusType.RECOVERING.ordinal()] = colorsByStatus[3];
+        statusColors[Species.of(livingEntityClass).getId()] = byOrdinal;
     }
 
     /**
@@ -154,8 +166,9 @@ public class GridView extends JFrame implements SimulatorView {
 
 
     /**
-     * Show the current status of the field.
-     * Each color is for one state of one entity
+     * Show the current status of the field. The field is captured and drawn
+     * later on the event dispatch thread (see RenderLoop), so that the
+     * simulation does not wait for the drawing.
      *
      * @param step
      *            Which iteration step it is.
@@ -163,30 +176,38 @@ public class GridView extends JFrame implements SimulatorView {
      *            The field whose status is to be displayed.
      */
     public void showStatus(int step, Map field) {
+        renderLoop.publish(step, field);
+    }
+
+    /**
+     * Draw a snapshot of the field, on the event dispatch thread.
+     * Each color is for one state of one entity
+     *
+     * @param snapshot
+     *            The snapshot of the field.
+     */
+    public void render(StepSnapshot snapshot) {
         if (!isVisible()) {
             setVisible(true);
         }
 
-        stepLabel.setText(STEP_PREFIX + step);
-        stats.reset();
+        stepLabel.setText(STEP_PREFIX + snapshot.getStep());
 
         fieldView.preparePaint();
 
-        for (int row = 0; row < field.getDepth(); row++) {
-            for (int col = 0; col < field.getWidth(); col++) {
-                LivingEntity livingBeing = field.getEntityAt(row, col);
-                if (livingBeing != null) {
-                    stats.incrementCount(livingBeing.getClass());
-                    fieldView.drawMark(col, row, getColorState(livingBeing));
+        for (int col = 0; col < snapshot.getWidth(); col++) {
+            for (int row = 0; row < snapshot.getDepth(); row++) {
+                if (snapshot.isOccupied(col, row)) {
+                    fieldView.drawMark(col, row, getColorState(snapshot.getSpeciesId(col, row),
+                            snapshot.getHealthStatus(col, row)));
                 } else {
                     fieldView.drawMark(col, row, EMPTY_COLOR);
                 }
             }
         }
-        stats.countFinished();
 
         population.setText(POPULATION_PREFIX
-                + stats.getPopulationDetails(field));
+                + stats.getPopulationDetails(snapshot));
         fieldView.repaint();
     }
 
@@ -196,27 +217,21 @@ public class GridView extends JFrame implements SimulatorView {
      * @return
      */
     public Color getColorState (Object livingBeing){
-        Color[] tabColor = new Color[4];
-        int indice_ste = 0;
-        if (livingBeing instanceof LivingEntity){
-            int lb = indice_lb.get(livingBeing.getClass());
-            switch (lb){
-                case 0:
-                    tabColor=HUMANS_COLORS;
-                    break;
-                case 1:
-                    tabColor=CHICKENS_COLORS;
-                    break;
-                case 2:
-                    tabColor = DUCKS_COLORS;
-                    break;
-                case 3:
-                    tabColor = PIGS_COLORS;
-                    break;
-            }
-            indice_ste = indice_state.get(((LivingEntity) livingBeing).getHealthStatus());
-        }
-        return tabColor[indice_ste];
+        if (!(livingBeing instanceof LivingEntity)) return UNKNOWN_COLOR;
+        LivingEntity livingEntity = (LivingEntity) livingBeing;
+        return getColorState(livingEntity.getSpeciesId(), livingEntity.getHealthStatus());
+    }
+
+    /**
+     * Returns the color of an entity of a species in a health status
+     * @param speciesId the id of the species (see Species.getId)
+     * @param status the health status
+     * @return the color
+     */
+    private Color getColorState(int speciesId, HealthStatusType status) {
+        Color[] byStatus = statusColors[speciesId];
+        if (byStatus == null) return UNKNOWN_COLOR;
+        return byStatus[status.ordinal()];
     }
 
     /**
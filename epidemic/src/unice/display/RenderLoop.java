@@ -0,0 +1,102 @@
+package unice.display;
+
+import unice.map.Map;
+
+import javax.swing.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decouples the drawing of a view from the simulation. At the end of each step, the simulation
+ * thread captures a StepSnapshot and publishes it, without waiting. A Swing timer renders the
+ * latest snapshot on the event dispatch thread at the display rate: when the simulation publishes
+ * faster than the view draws, the snapshots not rendered yet are replaced, ie the frames are
+ * dropped, so that the speed of the simulation does not depend on the drawing.
+ * Three snapshots are enough: one being captured, one published, one being rendered. The dropped
+ * and rendered snapshots are reused, so that publishing does not allocate, and a reused snapshot
+ * only copies the chunks of the map changed since it was captured (see StepSnapshot.capture).
+ *
+ * @author Romain Chaudron
+ */
+public class RenderLoop {
+    /**
+     * Draws a snapshot, on the event dispatch thread.
+     */
+    public interface Renderer {
+        void render(StepSnapshot snapshot);
+    }
+
+    // Default number of frames per second.
+    public static final int DEFAULT_FRAME_RATE = 60;
+
+    private Renderer renderer;
+    private boolean withCells;
+    private AtomicReference<StepSnapshot> published = new AtomicReference<>(); // Latest snapshot not rendered yet
+    private AtomicReference<StepSnapshot> free = new AtomicReference<>();      // Snapshot to reuse
+    private AtomicInteger droppedFrames = new AtomicInteger();
+    private Timer timer;
+
+    /**
+     * Create a render loop, and start its timer.
+     *
+     * @param theRenderer
+     *            The view drawing the snapshots.
+     * @param theWithCells
+     *            true if the view draws the cells, false if it only needs the counts.
+     * @param framesPerSecond
+     *            The number of snapshots rendered per second, at most.
+     */
+    public RenderLoop(Renderer theRenderer, boolean theWithCells, int framesPerSecond) {
+        renderer = theRenderer;
+        withCells = theWithCells;
+        timer = new Timer(1000 / Math.max(1, framesPerSecond), e -> renderLatest());
+        timer.setCoalesce(true);
+        timer.start();
+    }
+
+    /**
+     * Capture the state of the map and publish it, replacing the previous snapshot if it was not
+     * rendered yet. Called by the simulation thread, at the end of a step.
+     *
+     * @param step
+     *            The step.
+     * @param map
+     *            The map.
+     */
+    public void publish(int step, Map map) {
+        StepSnapshot snapshot = free.getAndSet(null);
+        if (snapshot == null || !snapshot.fits(withCells, map.getWidth(), map.getDepth())) {
+            snapshot = new StepSnapshot(withCells, map.getWidth(), map.getDepth());
+        }
+        snapshot.capture(step, map);
+        StepSnapshot dropped = published.getAndSet(snapshot);
+        if (dropped != null) {
+            droppedFrames.incrementAndGet();
+            free.set(dropped);
+        }
+    }
+
+    /**
+     * Render the latest snapshot, if any was published since the previous frame.
+     */
+    private void renderLatest() {
+        StepSnapshot snapshot = published.getAndSet(null);
+        if (snapshot == null) return;
+        renderer.render(snapshot);
+        free.set(snapshot);
+    }
+
+    /**
+     * @return the number of snapshots replaced before being rendered
+     */
+    public int getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Stop rendering.
+     */
+    public void stop() {
+        timer.stop();
+    }
+}
@@ -0,0 +1,235 @@
+package unice.display;
+
+import unice.livingEntities.EntityStore;
+import unice.livingEntities.HealthStatusType;
+import unice.livingEntities.Species;
+import unice.map.Map;
+
+import java.util.Arrays;
+
+/**
+ * The state of the map at the end of a step, as drawn by the views: the species and the health
+ * status of the entity of each cell, and the number of entities of each species in each health
+ * status. It is captured on the simulation thread, then only read by the render loop (see
+ * RenderLoop), so that the views never read the map while the simulation changes it.
+ * A snapshot is not changed once published, until the render loop gives it back to be reused.
+ *
+ * @author Romain Chaudron
+ */
+public class StepSnapshot {
+    private static final HealthStatusType[] HEALTH_STATUSES = HealthStatusType.values();
+    private static final int STATUS_BITS = 3;
+    // Copying a chunk cell by cell costs about 4 times as much by cell as capturing all the cells
+    private static final int FULL_CAPTURE_SHARE = 4;
+
+    private int step;
+    private int width;
+    private int depth;
+    private short[] cells;      // 0 for an empty cell, else 1 + the species id and the health status
+    private int[] chunkIds;     // Buffer of the ids + 1 of the cells of a chunk (see Map.copyChunk)
+    private Map capturedMap;    // Map of the cells, null if they were never captured
+    private int changeStamp;    // Change stamp of the map when the cells were captured (see Map.nextChangeStamp)
+    private int[] census = new int[Species.MAX_SPECIES * HEALTH_STATUSES.length];
+    private int speciesCount;
+
+    /**
+     * Create an empty snapshot.
+     *
+     * @param withCells
+     *            true to capture the cells, false to only capture the counts.
+     * @param theWidth
+     *            The width of the map.
+     * @param theDepth
+     *            The depth of the map.
+     */
+    StepSnapshot(boolean withCells, int theWidth, int theDepth) {
+        width = theWidth;
+        depth = theDepth;
+        if (withCells) {
+            cells = new short[theWidth * theDepth];
+            chunkIds = new int[Map.getChunkSide() * Map.getChunkSide()];
+        }
+    }
+
+    /**
+     * Check if the snapshot can capture a map of the given size.
+     */
+    boolean fits(boolean withCells, int theWidth, int theDepth) {
+        return (cells != null) == withCells && width == theWidth && depth == theDepth;
+    }
+
+    /**
+     * Capture the state of a map. Only the chunks of the map changed since the previous capture of
+     * this snapshot are copied (see Map.isChangedSince), so that the cost is proportional to the
+     * number of chunks where something happened, not to the size of the map. When more than a
+     * chunk out of FULL_CAPTURE_SHARE changed, or the first time, or when the map was cleared or
+     * replaced, all the cells are captured again from the entities having a location, which is
+     * then faster than copying the chunks cell by cell.
+     *
+     * @param theStep
+     *            The step.
+     * @param map
+     *            The map.
+     */
+    void capture(int theStep, Map map) {
+        step = theStep;
+        EntityStore store = map.getEntityStore();
+        speciesCount = Species.count();
+        for (int speciesId = 0; speciesId < speciesCount; speciesId++) {
+            Species species = Species.get(speciesId);
+            for (HealthStatusType status : HEALTH_STATUSES) {
+                census[speciesId * HEALTH_STATUSES.length + status.ordinal()] = store.count(species, status);
+            }
+        }
+        if (cells == null) return;
+
+        int changed = 0;
+        if (map == capturedMap && !map.isClearedSince(changeStamp)) {
+            for (int chunk = 0; chunk < map.getChunkCount(); chunk++) {
+                if (map.isChangedSince(chunk, changeStamp)) changed++;
+            }
+        }
+        if (map != capturedMap || map.isClearedSince(changeStamp)
+                || changed > map.getChunkCount() / FULL_CAPTURE_SHARE) {
+            captureAll(store);
+            capturedMap = map;
+        } else if (changed > 0) {
+            for (int chunk = 0; chunk < map.getChunkCount(); chunk++) {
+                if (map.isChangedSince(chunk, changeStamp)) captureChunk(map, store, chunk);
+            }
+        }
+        changeStamp = map.nextChangeStamp();
+    }
+
+    /**
+     * Capture all the cells: they are cleared, then filled from the entities having a location.
+     */
+    private void captureAll(EntityStore store) {
+        Arrays.fill(cells, (short) 0);
+        for (int id = 0; id < store.size(); id++) {
+            if (store.hasLocation(id)) {
+                cells[store.getY(id) * width + store.getX(id)] =
+                        (short) ((store.getSpeciesId(id) << STATUS_BITS | store.getHealthStatus(id).ordinal()) + 1);
+            }
+        }
+    }
+
+    /**
+     * Capture the cells of a chunk of the map, row by row, the cells of a row being consecutive in the
+     * snapshot. The cells are occupied at random, so that the entity 0 is read for the empty cells and
+     * its value masked, rather than testing each cell.
+     */
+    private void captureChunk(Map map, EntityStore store, int chunk) {
+        int side = Map.getChunkSide();
+        long first = map.copyChunk(chunk, chunkIds);
+        int x0 = map.getX(first);
+        int y0 = map.getY(first);
+        int columns = Math.min(side, width - x0);
+        int rows = Math.min(side, depth - y0);
+        for (int ly = 0; ly < rows; ly++) {
+            int row = (y0 + ly) * width + x0;
+            for (int lx = 0; lx < columns; lx++) {
+                int cell = chunkIds[lx * side + ly];
+                int id = Math.max(cell - 1, 0);
+                int value = (store.getSpeciesId(id) << STATUS_BITS | store.getHealthStatus(id).ordinal()) + 1;
+                cells[row + lx] = (short) (value & -Math.min(cell, 1));
+            }
+        }
+    }
+
+    /**
+     * @return the step of the snapshot
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * @return the width of the map
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the depth of the map
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Check if a cell holds an entity. The cells are only captured for the views drawing them.
+     *
+     * @param x
+     *            Location X of the cell.
+     * @param y
+     *            Location Y of the cell.
+     * @return true if the cell holds an entity
+     */
+    public boolean isOccupied(int x, int y) {
+        return cells[y * width + x] != 0;
+    }
+
+    /**
+     * Returns the id of the species of the entity of a cell
+     *
+     * @param x
+     *            Location X of the cell, which must be occupied.
+     * @param y
+     *            Location Y of the cell.
+     * @return the id of the species (see Species.getId)
+     */
+    public int getSpeciesId(int x, int y) {
+        return (cells[y * width + x] - 1) >>> STATUS_BITS;
+    }
+
+    /**
+     * Returns the health status of the entity of a cell
+     *
+     * @param x
+     *            Location X of the cell, which must be occupied.
+     * @param y
+     *            Location Y of the cell.
+     * @return the health status
+     */
+    public HealthStatusType getHealthStatus(int x, int y) {
+        return HEALTH_STATUSES[(cells[y * width + x] - 1) & ((1 << STATUS_BITS) - 1)];
+    }
+
+    /**
+     * Returns the number of entities of a species having a health status
+     *
+     * @param species
+     *            The species.
+     * @param status
+     *            The health status.
+     * @return the number of entities
+     */
+    public int count(Species species, HealthStatusType status) {
+        if (species.getId() >= speciesCount) return 0;
+        return census[species.getId() * HEALTH_STATUSES.length + status.ordinal()];
+    }
+
+    /**
+     * Returns the number of living entities (ie not DEAD) of a species
+     *
+     * @param species
+     *            The species.
+     * @return the number of living entities
+     */
+    public int countLiving(Species species) {
+        int living = 0;
+        for (HealthStatusType status : HEALTH_STATUSES) {
+            if (status != HealthStatusType.DEAD) living += count(species, status);
+        }
+        return living;
+    }
+
+    /**
+     * @return the number of species registered when the snapshot was captured
+     */
+    public int getSpeciesCount() {
+        return speciesCount;
+    }
+}
@@ -0,0 +1,241 @@
+package unice.events;
+
+import unice.livingEntities.Species;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author Thomas
+ * An EventSink writing the events in a compact binary file, read back by EventReader. Reporting an event
+ * only copies it in a block of longs, taken from a few blocks allocated once: a full block is handed to a
+ * background thread, which encodes its events with variable-length integers and gives the block back, while
+ * the simulation goes on. When all the blocks are waiting to be written, the simulation waits for one, so
+ * that no event is lost.
+ * The file starts with a header (MAGIC, VERSION), followed by the records: a type byte, then the fields of
+ * the event (see EventReader). The name of a species or of a virus is written in a NAME record before the
+ * first event using its id.
+ */
+public class EventLog implements EventSink, Closeable {
+    static final int MAGIC = 0x464C5545;    // "FLUE"
+    static final int VERSION = 1;
+    // Types of the records
+    static final int NAME = 0;
+    static final int INFECTION = 1;
+    static final int TRANSITION = 2;
+    // Kinds of the NAME records
+    static final int SPECIES_NAME = 1;
+    static final int VIRUS_NAME = 2;
+
+    private static final int WORDS = 3;             // Longs per event
+    private static final int BLOCK_EVENTS = 8192;   // Events per block
+    private static final int BLOCKS = 8;            // Blocks allocated
+
+    private static final class Block {
+        final long[] words = new long[BLOCK_EVENTS * WORDS];
+        int count;          // Number of events in the block, -1 to stop the writing thread
+    }
+
+    private DataOutputStream out;
+    private BlockingQueue<Block> full = new ArrayBlockingQueue<>(BLOCKS + 1);  // Blocks waiting to be written
+    private BlockingQueue<Block> free = new ArrayBlockingQueue<>(BLOCKS);      // Blocks written, to be filled again
+    private Block current;                                  // Block being filled
+    // Names of the viruses declared, in order, with their own lock as the writing thread reads them
+    private List<String> virusNames = Collections.synchronizedList(new ArrayList<>());
+    private boolean[] speciesDeclared = new boolean[Species.MAX_SPECIES]; // Species names written
+    private Thread writer;
+    private long eventCount;
+    private boolean closed;
+    private volatile IOException failure;   // Failure of the writing thread, thrown by close
+
+    /**
+     * Create a log writing in a file, replaced if it exists
+     * @param path the path of the file
+     * @throws IOException if the file can not be created
+     */
+    public EventLog(Path path) throws IOException {
+        this(Files.newOutputStream(path));
+    }
+
+    /**
+     * Create a log writing in a stream, closed with the log
+     * @param output the stream
+     * @throws IOException if the header can not be written
+     */
+    public EventLog(OutputStream output) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        current = new Block();
+        for (int i = 1; i < BLOCKS; i++) {
+            free.add(new Block());
+        }
+        writer = new Thread(this::write, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public synchronized void virus(int virusId, String name) {
+        virusNames.add(name);
+        append(header(NAME, VIRUS_NAME, virusId, 0, 0), virusNames.size() - 1, 0);
+    }
+
+    @Override
+    public void infection(int step, int sourceId, int targetId, int speciesId, int virusId, int x, int y) {
+        append(header(INFECTION, speciesId, virusId, 0, step), (long) sourceId << 32 | (targetId & 0xffffffffL),
+                (long) x << 32 | (y & 0xffffffffL));
+    }
+
+    @Override
+    public void transition(int step, int id, int speciesId, int fromStatus, int toStatus, int x, int y) {
+        append(header(TRANSITION, speciesId, fromStatus, toStatus, step), id, (long) x << 32 | (y & 0xffffffffL));
+    }
+
+    /**
+     * Return the number of events reported
+     * @return the number of events
+     */
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Write the events waiting in the blocks, then close the file
+     * @throws IOException if the events could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            Block last = new Block();
+            last.count = -1;
+            try {
+                full.put(current);
+                full.put(last);
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        out.close();
+        if (failure != null) throw failure;
+    }
+
+    private static long header(int type, int a, int b, int c, int step) {
+        return (long) type << 56 | (long) (a & 0xff) << 48 | (long) (b & 0xff) << 40 | (long) (c & 0xff) << 32
+                | (step & 0xffffffffL);
+    }
+
+    /**
+     * Copy an event in the current block, and hand the block to the writing thread when it is full
+     */
+    private synchronized void append(long word0, long word1, long word2) {
+        if (closed) return;
+        Block block = current;
+        int i = block.count * WORDS;
+        block.words[i] = word0;
+        block.words[i + 1] = word1;
+        block.words[i + 2] = word2;
+        eventCount++;
+        if (++block.count == BLOCK_EVENTS) {
+            try {
+                full.put(block);
+                current = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the event log", e);
+            }
+        }
+    }
+
+    /**
+     * Loop of the writing thread. After a failure, the blocks are still given back, so that the simulation
+     * never waits for ever.
+     */
+    private void write() {
+        try {
+            while (true) {
+                Block block = full.take();
+                if (block.count < 0) break;
+                if (failure == null) {
+                    try {
+                        encode(block);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                block.count = 0;
+                free.offer(block);
+            }
+            if (failure == null) out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void encode(Block block) throws IOException {
+        long[] words = block.words;
+        for (int i = 0; i < block.count * WORDS; i += WORDS) {
+            long word0 = words[i];
+            int type = (int) (word0 >>> 56);
+            int a = (int) (word0 >>> 48) & 0xff;
+            int b = (int) (word0 >>> 40) & 0xff;
+            int c = (int) (word0 >>> 32) & 0xff;
+            int step = (int) word0;
+            int high = (int) (words[i + 1] >>> 32);
+            int low = (int) words[i + 1];
+            int x = (int) (words[i + 2] >>> 32);
+            int y = (int) words[i + 2];
+            if (type == NAME) {
+                writeName(VIRUS_NAME, b, virusNames.get(low));
+                continue;
+            }
+            if (!speciesDeclared[a]) {
+                writeName(SPECIES_NAME, a, Species.get(a).getName());
+                speciesDeclared[a] = true;
+            }
+            out.writeByte(type);
+            writeVarInt(step);
+            writeVarInt(a);
+            if (type == INFECTION) {
+                writeVarInt(b);
+                writeVarInt(high + 1);
+            } else {
+                writeVarInt(b);
+                writeVarInt(c);
+            }
+            writeVarInt(low);
+            writeVarInt(x + 1);
+            writeVarInt(y + 1);
+        }
+    }
+
+    private void writeName(int kind, int id, String name) throws IOException {
+        out.writeByte(NAME);
+        out.writeByte(kind);
+        writeVarInt(id);
+        out.writeUTF(name);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
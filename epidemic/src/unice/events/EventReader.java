@@ -0,0 +1,204 @@
+package unice.events;
+
+import unice.livingEntities.HealthStatusType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * @author Thomas
+ * Reads the events written by an EventLog one after the other, without loading the whole file: next moves
+ * to the next event, whose fields are then given by the getters.
+ * Records after the type byte, all the fields being variable-length integers:
+ * INFECTION: step, species, virus, source id + 1, target id, X + 1, Y + 1;
+ * TRANSITION: step, species, previous status, new status, id, X + 1, Y + 1;
+ * NAME: kind byte (species or virus), id, then the name (see DataOutput.writeUTF).
+ * The main method converts a log to CSV.
+ */
+public class EventReader implements Closeable {
+    public static final int INFECTION = EventLog.INFECTION;
+    public static final int TRANSITION = EventLog.TRANSITION;
+    private static final HealthStatusType[] HEALTH_STATUSES = HealthStatusType.values();
+
+    private DataInputStream in;
+    private String[] speciesNames = new String[256];
+    private String[] virusNames = new String[256];
+
+    // Fields of the current event
+    private int type;
+    private int step;
+    private int id;
+    private int sourceId;
+    private int speciesId;
+    private int virusId;
+    private int fromStatus;
+    private int toStatus;
+    private int x;
+    private int y;
+
+    /**
+     * Create a reader of the events of a stream, closed with the reader
+     * @param input the stream
+     * @throws IOException if the stream does not start with the header of an event log
+     */
+    public EventReader(InputStream input) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        if (in.readInt() != EventLog.MAGIC || in.readInt() != EventLog.VERSION) {
+            throw new IOException("Not an event log");
+        }
+    }
+
+    /**
+     * Move to the next event
+     * @return false if there is no more event
+     * @throws IOException if the stream can not be read
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int theType = in.read();
+            if (theType < 0) return false;
+            if (theType == EventLog.NAME) {
+                int kind = in.readByte();
+                int nameId = readVarInt();
+                String name = in.readUTF();
+                if (kind == EventLog.SPECIES_NAME) {
+                    speciesNames[nameId] = name;
+                } else {
+                    virusNames[nameId] = name;
+                }
+                continue;
+            }
+            type = theType;
+            step = readVarInt();
+            speciesId = readVarInt();
+            if (type == INFECTION) {
+                virusId = readVarInt();
+                sourceId = readVarInt() - 1;
+                fromStatus = HealthStatusType.HEALTHY.ordinal();
+                toStatus = HealthStatusType.SICK.ordinal();
+            } else {
+                fromStatus = readVarInt();
+                toStatus = readVarInt();
+                sourceId = -1;
+                virusId = 0;
+            }
+            id = readVarInt();
+            x = readVarInt() - 1;
+            y = readVarInt() - 1;
+            return true;
+        }
+    }
+
+    /**
+     * @return the type of the event, INFECTION or TRANSITION
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return the step of the event
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * @return the id of the entity infected or changing status
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the id of the contagious entity of an infection, -1 for an initial infection or a transition
+     */
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * @return the name of the species of the entity
+     */
+    public String getSpeciesName() {
+        return speciesNames[speciesId];
+    }
+
+    /**
+     * @return the name of the virus of an infection, null for a transition
+     */
+    public String getVirusName() {
+        return type == INFECTION ? virusNames[virusId] : null;
+    }
+
+    /**
+     * @return the previous health status of the entity
+     */
+    public HealthStatusType getFromStatus() {
+        return HEALTH_STATUSES[fromStatus];
+    }
+
+    /**
+     * @return the new health status of the entity
+     */
+    public HealthStatusType getToStatus() {
+        return HEALTH_STATUSES[toStatus];
+    }
+
+    /**
+     * @return Location X of the entity, -1 if it was not on the map
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return Location Y of the entity, -1 if it was not on the map
+     */
+    public int getY() {
+        return y;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("Truncated event");
+            value |= (b & 0x7f) << shift;
+            if (b < 0x80) return value;
+        }
+    }
+
+    /**
+     * Convert an event log to CSV on the standard output
+     * @param args the path of the event log
+     * @throws IOException if the log can not be read
+     */
+    public static void main(String[] args) throws IOException {
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        out.println("step,event,id,species,source,virus,from,to,x,y");
+        try (EventReader reader = new EventReader(Files.newInputStream(Paths.get(args[0])))) {
+            while (reader.next()) {
+                out.println(reader.getStep() + "," + (reader.getType() == INFECTION ? "infection" : "transition")
+                        + "," + reader.getId() + "," + reader.getSpeciesName() + "," + reader.getSourceId()
+                        + "," + (reader.getVirusName() == null ? "" : reader.getVirusName())
+                        + "," + reader.getFromStatus() + "," + reader.getToStatus()
+                        + "," + reader.getX() + "," + reader.getY());
+            }
+        }
+        out.flush();
+    }
+}
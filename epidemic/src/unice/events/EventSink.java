@@ -0,0 +1,41 @@
+package unice.events;
+
+/**
+ * @author Thomas
+ * Receives the events of a simulation: the infections and the health status transitions of the living
+ * entities, reported by their EntityStore (see EntityStore.setEventSink). The events are reported by the
+ * thread changing the entities, in the order they happen, the entities being designated by their id in the
+ * store, the species and the viruses by their id (see Species.getId and the virus declarations).
+ */
+public interface EventSink {
+    /**
+     * Declares the name of a virus id, before any event using it
+     * @param virusId the id of the virus in the store
+     * @param name the name of the virus
+     */
+    void virus(int virusId, String name);
+
+    /**
+     * Reports an infection
+     * @param step the step of the simulation
+     * @param sourceId the id of the contagious entity, -1 for an initial infection
+     * @param targetId the id of the entity infected
+     * @param speciesId the id of the species of the entity infected
+     * @param virusId the id of the virus
+     * @param x Location X of the entity infected, -1 if it is not on the map
+     * @param y Location Y of the entity infected, -1 if it is not on the map
+     */
+    void infection(int step, int sourceId, int targetId, int speciesId, int virusId, int x, int y);
+
+    /**
+     * Reports a health status transition
+     * @param step the step of the simulation
+     * @param id the id of the entity
+     * @param speciesId the id of the species of the entity
+     * @param fromStatus the ordinal of the previous health status
+     * @param toStatus the ordinal of the new health status
+     * @param x Location X of the entity, -1 if it is not on the map
+     * @param y Location Y of the entity, -1 if it is not on the map
+     */
+    void transition(int step, int id, int speciesId, int fromStatus, int toStatus, int x, int y);
+}
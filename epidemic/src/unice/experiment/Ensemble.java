@@ -0,0 +1,218 @@
+package unice.experiment;
+
+import unice.livingEntities.EntityStore;
+import unice.livingEntities.HealthStatusType;
+import unice.livingEntities.Species;
+import unice.map.NeighbourhoodType;
+import unice.random.RandomStream;
+import unice.simulator.Simulator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent replicas of the same simulation, each one with its own seed, on all the
+ * cores, and gives the statistics of their metrics (see EnsembleResult).
+ * Each thread runs one headless simulation at a time, so that the memory used does not depend on
+ * the number of replicas. The ensemble can stop before running all the replicas, once the
+ * confidence intervals of chosen metrics are narrow enough. The replicas are added to the result in
+ * the order of their indices, and the stopping rule is checked after each one, so that the replicas
+ * kept only depend on the seed, not on the order in which the threads finish them.
+ *
+ * @author Romain Chaudron
+ */
+public class Ensemble {
+    // Number of replicas to run before checking the confidence intervals.
+    private static final int MIN_REPLICAS = 10;
+
+    private int depth;
+    private int width;
+    private NeighbourhoodType neighbourhoodType;
+    private int steps;
+    private int replicas;
+    private long seed = System.nanoTime();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    // Width of the 95% confidence interval to reach for some metrics, to stop early.
+    private java.util.Map<String, Double> targetWidths = new LinkedHashMap<>();
+
+    /**
+     * Create an ensemble of simulations.
+     *
+     * @param theDepth
+     *            Depth of the map of the simulations.
+     * @param theWidth
+     *            Width of the map of the simulations.
+     * @param theNeighbourhoodType
+     *            Neighbourhood type of the map of the simulations.
+     * @param theSteps
+     *            Number of steps of each simulation.
+     * @param theReplicas
+     *            Maximum number of replicas.
+     */
+    public Ensemble(int theDepth, int theWidth, NeighbourhoodType theNeighbourhoodType, int theSteps, int theReplicas) {
+        depth = theDepth;
+        width = theWidth;
+        neighbourhoodType = theNeighbourhoodType;
+        steps = theSteps;
+        replicas = theReplicas;
+    }
+
+    /**
+     * Define the seed of the ensemble. The seed of each replica is derived from it and from the
+     * index of the replica.
+     *
+     * @param theSeed
+     *            The seed.
+     */
+    public void setSeed(long theSeed) {
+        seed = theSeed;
+    }
+
+    /**
+     * Define the number of replicas run at the same time.
+     *
+     * @param theThreads
+     *            The number of threads.
+     */
+    public void setThreads(int theThreads) {
+        threads = theThreads;
+    }
+
+    /**
+     * Stop the ensemble once the 95% confidence interval of the mean of a metric is narrower than
+     * the given width. With several metrics, all the intervals must be narrow enough.
+     *
+     * @param metric
+     *            The name of the metric (see EnsembleResult).
+     * @param targetWidth
+     *            The width to reach.
+     */
+    public void stopWhenNarrowerThan(String metric, double targetWidth) {
+        targetWidths.put(metric, targetWidth);
+    }
+
+    /**
+     * Run the replicas. A replica finished before the ones of lower indices waits for them before being
+     * added to the result, and the replicas of higher indices than the one making the intervals narrow
+     * enough are dropped.
+     *
+     * @return the statistics of the metrics of the replicas
+     */
+    public EnsembleResult run() throws InterruptedException {
+        final EnsembleResult result = new EnsembleResult();
+        final AtomicInteger nextReplica = new AtomicInteger();
+        final ReplicaSummary[] finished = new ReplicaSummary[replicas]; // Replicas waiting to be added
+        final int[] added = new int[1];             // Number of replicas added, guarded by finished
+        final AtomicInteger lastReplica = new AtomicInteger(replicas); // Replicas to run, from 0
+
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(() -> {
+                int replica;
+                while ((replica = nextReplica.getAndIncrement()) < lastReplica.get()) {
+                    long replicaSeed = RandomStream.key(seed, replica);
+                    ReplicaSummary summary = runReplica(depth, width, neighbourhoodType, steps, replicaSeed);
+                    synchronized (finished) {
+                        finished[replica] = summary;
+                        // Add the replicas following the ones already added, in order
+                        while (added[0] < lastReplica.get() && finished[added[0]] != null) {
+                            result.add(finished[added[0]]);
+                            finished[added[0]++] = null;
+                            if (isPrecise(result)) lastReplica.set(added[0]);
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> worker : pool.invokeAll(workers)) {
+                worker.get();
+            }
+        } catch (ExecutionException theE) {
+            throw new IllegalStateException("A replica failed", theE.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Check if the confidence intervals of the chosen metrics are narrow enough.
+     */
+    private boolean isPrecise(EnsembleResult result) {
+        if (targetWidths.isEmpty() || result.getReplicaCount() < MIN_REPLICAS) return false;
+        for (java.util.Map.Entry<String, Double> target : targetWidths.entrySet()) {
+            if (result.getStatistics(target.getKey()).getConfidenceWidth() > target.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run one headless simulation, and summarize it.
+     *
+     * @param depth
+     *            Depth of the map.
+     * @param width
+     *            Width of the map.
+     * @param neighbourhoodType
+     *            Neighbourhood type of the map.
+     * @param steps
+     *            Number of steps to run, the simulation stopping before if it is not viable any more.
+     * @param seed
+     *            Seed of the simulation.
+     * @return the summary of the simulation
+     */
+    public static ReplicaSummary runReplica(int depth, int width, NeighbourhoodType neighbourhoodType, int steps, long seed) {
+        return runReplica(new Simulator(depth, width, neighbourhoodType, null, seed), steps);
+    }
+
+    /**
+     * Run a simulation from its current state, and summarize it.
+     *
+     * @param simulator
+     *            The simulation, usually headless.
+     * @param steps
+     *            Number of steps to run, the simulation stopping before if it is not viable any more.
+     * @return the summary of the simulation
+     */
+    public static ReplicaSummary runReplica(Simulator simulator, int steps) {
+        EntityStore store = simulator.getMap().getEntityStore();
+        int lastStep = simulator.getStep() + steps;
+        int peakInfected = countInfected(store);
+        int peakStep = simulator.getStep();
+        while (simulator.getStep() < lastStep && simulator.isViable()) {
+            // The number of infected entities does not change during the skipped steps
+            simulator.advance(lastStep);
+            int infected = countInfected(store);
+            if (infected > peakInfected) {
+                peakInfected = infected;
+                peakStep = simulator.getStep();
+            }
+        }
+
+        java.util.Map<String, Integer> deaths = new LinkedHashMap<>();
+        for (int id = 0; id < Species.count(); id++) {
+            Species species = Species.get(id);
+            deaths.put(species.getName(), store.count(species, HealthStatusType.DEAD));
+        }
+        return new ReplicaSummary(simulator.getSeed(), simulator.getStep(), peakInfected, peakStep, deaths);
+    }
+
+    private static int countInfected(EntityStore store) {
+        return store.count(HealthStatusType.SICK)
+                + store.count(HealthStatusType.CONTAGIOUS)
+                + store.count(HealthStatusType.RECOVERING);
+    }
+}
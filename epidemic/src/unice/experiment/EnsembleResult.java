@@ -0,0 +1,116 @@
+package unice.experiment;
+
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Statistics of the metrics of the replicas of an Ensemble. The summaries of the replicas are
+ * added as they are produced, and only their statistics are kept. Several threads can add
+ * summaries at the same time, and two results can be merged.
+ *
+ * @author Romain Chaudron
+ */
+public class EnsembleResult {
+    // Names of the metrics.
+    public static final String PEAK_INFECTED = "peakInfected";
+    public static final String TIME_TO_PEAK = "timeToPeak";
+    public static final String DEATHS = "deaths";
+    // Prefix of the metrics giving the deaths of a species (ex: "deaths.Pig").
+    public static final String DEATHS_PREFIX = "deaths.";
+
+    private java.util.Map<String, Statistics> metrics = new LinkedHashMap<>();
+    private long replicas;
+
+    /**
+     * Add the metrics of a replica.
+     *
+     * @param summary
+     *            The summary of the replica.
+     */
+    public synchronized void add(ReplicaSummary summary) {
+        replicas++;
+        getOrCreate(PEAK_INFECTED).add(summary.getPeakInfected());
+        getOrCreate(TIME_TO_PEAK).add(summary.getPeakStep());
+        getOrCreate(DEATHS).add(summary.getDeaths());
+        for (java.util.Map.Entry<String, Integer> deaths : summary.getDeathsBySpecies().entrySet()) {
+            getOrCreate(DEATHS_PREFIX + deaths.getKey()).add(deaths.getValue());
+        }
+    }
+
+    /**
+     * Add the statistics of another result.
+     *
+     * @param other
+     *            The result to merge.
+     */
+    public void merge(EnsembleResult other) {
+        java.util.Map<String, Statistics> otherMetrics = new LinkedHashMap<>();
+        long otherReplicas;
+        synchronized (other) {
+            for (java.util.Map.Entry<String, Statistics> metric : other.metrics.entrySet()) {
+                Statistics copy = new Statistics();
+                copy.merge(metric.getValue());
+                otherMetrics.put(metric.getKey(), copy);
+            }
+            otherReplicas = other.replicas;
+        }
+        synchronized (this) {
+            replicas += otherReplicas;
+            for (java.util.Map.Entry<String, Statistics> metric : otherMetrics.entrySet()) {
+                getOrCreate(metric.getKey()).merge(metric.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return The number of replicas added.
+     */
+    public synchronized long getReplicaCount() {
+        return replicas;
+    }
+
+    /**
+     * @return The names of the metrics.
+     */
+    public synchronized Set<String> getMetrics() {
+        return new java.util.LinkedHashSet<>(metrics.keySet());
+    }
+
+    /**
+     * Return the statistics of a metric.
+     *
+     * @param metric
+     *            The name of the metric (ex: PEAK_INFECTED).
+     * @return the statistics of the metric, empty if the metric is unknown
+     */
+    public synchronized Statistics getStatistics(String metric) {
+        Statistics copy = new Statistics();
+        Statistics statistics = metrics.get(metric);
+        if (statistics != null) {
+            copy.merge(statistics);
+        }
+        return copy;
+    }
+
+    private Statistics getOrCreate(String metric) {
+        Statistics statistics = metrics.get(metric);
+        if (statistics == null) {
+            statistics = new Statistics();
+            metrics.put(metric, statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns a String representation of the result, one line per metric
+     * @return the statistics of each metric
+     */
+    public synchronized String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("replicas: ").append(replicas).append('\n');
+        for (java.util.Map.Entry<String, Statistics> metric : metrics.entrySet()) {
+            buffer.append(metric.getKey()).append(": ").append(metric.getValue()).append('\n');
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,132 @@
+package unice.experiment;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non negative values, giving quantiles with a relative error below 1/64.
+ * The values below 128 have their own bucket, then each power of two is cut into 64 buckets.
+ * As the buckets do not depend on the values added, two histograms can always be merged.
+ *
+ * @author Romain Chaudron
+ */
+public class Histogram {
+    private static final int SUB_BUCKETS = 64;     // Number of buckets for each power of two
+
+    private long[] counts = new long[2 * SUB_BUCKETS]; // Number of values in each bucket
+    private long count;                                 // Total number of values
+
+    /**
+     * Add a value to the histogram.
+     *
+     * @param value
+     *            The value, must not be negative.
+     */
+    public void add(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        int bucket = bucketOf(value);
+        if (bucket >= counts.length) {
+            counts = Arrays.copyOf(counts, bucket + SUB_BUCKETS);
+        }
+        counts[bucket]++;
+        count++;
+    }
+
+    /**
+     * Add all the values of another histogram to this one.
+     *
+     * @param other
+     *            The histogram to merge.
+     */
+    public void merge(Histogram other) {
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int bucket = 0; bucket < other.counts.length; bucket++) {
+            counts[bucket] += other.counts[bucket];
+        }
+        count += other.count;
+    }
+
+    /**
+     * Return the number of values.
+     *
+     * @return the number of values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Return an estimation of a quantile of the values (middle of the bucket of the quantile).
+     *
+     * @param quantile
+     *            The quantile, between 0 and 1 (ex: 0.5 for the median).
+     * @return the estimation of the quantile, or NaN if there is no value
+     */
+    public double getQuantile(double quantile) {
+        if (count == 0) return Double.NaN;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return getLowerBound(bucket) + (getWidth(bucket) - 1) / 2.0;
+            }
+        }
+        return getLowerBound(counts.length - 1);
+    }
+
+    /**
+     * Return the number of buckets that have been used so far.
+     *
+     * @return the number of buckets
+     */
+    public int getBucketCount() {
+        return counts.length;
+    }
+
+    /**
+     * Return the number of values in a bucket.
+     *
+     * @param bucket
+     *            The index of the bucket.
+     * @return the number of values in the bucket
+     */
+    public long getBucketCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * Return the lowest value of a bucket.
+     *
+     * @param bucket
+     *            The index of the bucket.
+     * @return the lowest value of the bucket
+     */
+    public static long getLowerBound(int bucket) {
+        int shift = shiftOf(bucket);
+        return (long) (bucket - SUB_BUCKETS * shift) << shift;
+    }
+
+    /**
+     * Return the number of values of a bucket.
+     *
+     * @param bucket
+     *            The index of the bucket.
+     * @return the number of values of the bucket
+     */
+    public static long getWidth(int bucket) {
+        return 1L << shiftOf(bucket);
+    }
+
+    private static int shiftOf(int bucket) {
+        return Math.max(0, bucket / SUB_BUCKETS - 1);
+    }
+
+    private static int bucketOf(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - 6);
+        return SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+}
@@ -0,0 +1,81 @@
+package unice.experiment;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+
+/**
+ * Summary of one run (replica) of a simulation: the peak of the number of infected entities,
+ * the step of that peak, and the number of deaths of each species.
+ *
+ * @author Romain Chaudron
+ */
+public class ReplicaSummary {
+    private long seed;                  // Seed of the replica
+    private int steps;                  // Number of steps run
+    private int peakInfected;           // Highest number of SICK, CONTAGIOUS or RECOVERING entities
+    private int peakStep;               // First step with that number of infected entities
+    private java.util.Map<String, Integer> deaths; // Number of deaths by species name
+
+    /**
+     * Constructor
+     * @param theSeed seed of the replica
+     * @param theSteps number of steps run
+     * @param thePeakInfected highest number of infected entities
+     * @param thePeakStep first step with that number of infected entities
+     * @param theDeaths number of deaths by species name
+     */
+    public ReplicaSummary(long theSeed, int theSteps, int thePeakInfected, int thePeakStep,
+                          java.util.Map<String, Integer> theDeaths) {
+        seed = theSeed;
+        steps = theSteps;
+        peakInfected = thePeakInfected;
+        peakStep = thePeakStep;
+        deaths = Collections.unmodifiableMap(new LinkedHashMap<>(theDeaths));
+    }
+
+    /**
+     * @return The seed of the replica.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return The number of steps run.
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return The highest number of infected entities.
+     */
+    public int getPeakInfected() {
+        return peakInfected;
+    }
+
+    /**
+     * @return The first step with the highest number of infected entities.
+     */
+    public int getPeakStep() {
+        return peakStep;
+    }
+
+    /**
+     * @return The number of deaths by species name.
+     */
+    public java.util.Map<String, Integer> getDeathsBySpecies() {
+        return deaths;
+    }
+
+    /**
+     * @return The total number of deaths.
+     */
+    public int getDeaths() {
+        int total = 0;
+        for (int speciesDeaths : deaths.values()) {
+            total += speciesDeaths;
+        }
+        return total;
+    }
+}
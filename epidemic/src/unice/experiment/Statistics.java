@@ -0,0 +1,128 @@
+package unice.experiment;
+
+/**
+ * Statistics of a metric over the replicas of a simulation: count, mean, standard deviation,
+ * minimum, maximum, confidence interval of the mean, and quantiles (using a Histogram).
+ * The statistics are computed on the fly, without keeping the values, and two Statistics can
+ * be merged, for example when they have been computed on different threads or machines.
+ *
+ * @author Romain Chaudron
+ */
+public class Statistics {
+    // Quantile of the normal distribution for a 95% confidence interval.
+    private static final double Z_95 = 1.959964;
+
+    private long count;
+    private double mean;
+    private double m2;          // Sum of the squares of the differences to the mean
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private Histogram histogram = new Histogram();
+
+    /**
+     * Add a value.
+     *
+     * @param value
+     *            The value, must not be negative.
+     */
+    public void add(long value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        histogram.add(value);
+    }
+
+    /**
+     * Add all the values of other statistics.
+     *
+     * @param other
+     *            The statistics to merge.
+     */
+    public void merge(Statistics other) {
+        if (other.count == 0) return;
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        count = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        histogram.merge(other.histogram);
+    }
+
+    /**
+     * @return The number of values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The mean of the values.
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * @return The standard deviation of the values (sample standard deviation).
+     */
+    public double getStandardDeviation() {
+        return count < 2 ? Double.NaN : Math.sqrt(m2 / (count - 1));
+    }
+
+    /**
+     * @return The smallest value.
+     */
+    public long getMin() {
+        return min;
+    }
+
+    /**
+     * @return The largest value.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Return the width of the 95% confidence interval of the mean.
+     *
+     * @return the width of the confidence interval, or infinity with less than two values
+     */
+    public double getConfidenceWidth() {
+        if (count < 2) return Double.POSITIVE_INFINITY;
+        return 2 * Z_95 * getStandardDeviation() / Math.sqrt(count);
+    }
+
+    /**
+     * Return an estimation of a quantile of the values.
+     *
+     * @param quantile
+     *            The quantile, between 0 and 1 (ex: 0.5 for the median).
+     * @return the estimation of the quantile
+     */
+    public double getQuantile(double quantile) {
+        return histogram.getQuantile(quantile);
+    }
+
+    /**
+     * @return The histogram of the values.
+     */
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Returns a String representation of the statistics
+     * @return the count, mean, confidence interval, and some quantiles
+     */
+    public String toString() {
+        return String.format(java.util.Locale.ROOT, "n=%d mean=%.2f +/-%.2f sd=%.2f min=%d p05=%.1f p50=%.1f p95=%.1f max=%d",
+                count, getMean(), getConfidenceWidth() / 2, getStandardDeviation(), min,
+                getQuantile(0.05), getQuantile(0.5), getQuantile(0.95), max);
+    }
+}
@@ -0,0 +1,242 @@
+package unice.experiment;
+
+import unice.map.NeighbourhoodType;
+import unice.random.RandomStream;
+import unice.simulator.Scenario;
+import unice.simulator.Simulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a simulation for each point of a grid of scenario parameters, on all the cores, and
+ * writes one row per configuration to a results table (comma separated values).
+ * Each swept parameter is given a list of values; the configurations are all the combinations
+ * of those values, the other parameters keeping their value in the base scenario. The
+ * configurations are never stored: each thread builds the scenario of the configuration it runs,
+ * and shares it between the replicas of that configuration.
+ * The replica r of every configuration uses the same seed, so that the differences between two
+ * configurations come from the parameters rather than from the random numbers.
+ *
+ * @author Romain Chaudron
+ */
+public class Sweep {
+    private Scenario baseScenario;
+    private int depth;
+    private int width;
+    private NeighbourhoodType neighbourhoodType;
+    private int steps;
+    private int replicas = 1;
+    private long seed = System.nanoTime();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private List<Scenario.Parameter> parameters = new ArrayList<>();
+    private List<double[]> values = new ArrayList<>();
+
+    /**
+     * Create a sweep.
+     *
+     * @param theBaseScenario
+     *            The values of the parameters which are not swept.
+     * @param theDepth
+     *            Depth of the map of the simulations.
+     * @param theWidth
+     *            Width of the map of the simulations.
+     * @param theNeighbourhoodType
+     *            Neighbourhood type of the map of the simulations.
+     * @param theSteps
+     *            Number of steps of each simulation.
+     */
+    public Sweep(Scenario theBaseScenario, int theDepth, int theWidth, NeighbourhoodType theNeighbourhoodType, int theSteps) {
+        baseScenario = theBaseScenario;
+        depth = theDepth;
+        width = theWidth;
+        neighbourhoodType = theNeighbourhoodType;
+        steps = theSteps;
+    }
+
+    /**
+     * Sweep a parameter over the given values.
+     *
+     * @param parameter
+     *            The parameter.
+     * @param theValues
+     *            The values of the parameter.
+     */
+    public void addValues(Scenario.Parameter parameter, double... theValues) {
+        if (theValues.length == 0) {
+            throw new IllegalArgumentException("No value for " + parameter);
+        }
+        parameters.add(parameter);
+        values.add(theValues.clone());
+    }
+
+    /**
+     * Sweep a parameter over evenly spaced values.
+     *
+     * @param parameter
+     *            The parameter.
+     * @param from
+     *            The first value.
+     * @param to
+     *            The last value.
+     * @param count
+     *            The number of values, from and to included.
+     */
+    public void addRange(Scenario.Parameter parameter, double from, double to, int count) {
+        double[] range = new double[count];
+        for (int i = 0; i < count; i++) {
+            range[i] = count == 1 ? from : from + (to - from) * i / (count - 1);
+        }
+        addValues(parameter, range);
+    }
+
+    /**
+     * Define the number of replicas of each configuration.
+     *
+     * @param theReplicas
+     *            The number of replicas.
+     */
+    public void setReplicas(int theReplicas) {
+        replicas = theReplicas;
+    }
+
+    /**
+     * Define the seed of the sweep.
+     *
+     * @param theSeed
+     *            The seed.
+     */
+    public void setSeed(long theSeed) {
+        seed = theSeed;
+    }
+
+    /**
+     * Define the number of configurations run at the same time.
+     *
+     * @param theThreads
+     *            The number of threads.
+     */
+    public void setThreads(int theThreads) {
+        threads = theThreads;
+    }
+
+    /**
+     * @return The number of configurations of the sweep.
+     */
+    public int getConfigurationCount() {
+        int count = 1;
+        for (double[] parameterValues : values) {
+            count = Math.multiplyExact(count, parameterValues.length);
+        }
+        return count;
+    }
+
+    /**
+     * Return the values of the swept parameters in a configuration. The first parameter varies
+     * the slowest.
+     *
+     * @param configuration
+     *            The index of the configuration.
+     * @return the values of the swept parameters
+     */
+    public double[] getConfiguration(int configuration) {
+        double[] configurationValues = new double[values.size()];
+        for (int i = values.size() - 1; i >= 0; i--) {
+            double[] parameterValues = values.get(i);
+            configurationValues[i] = parameterValues[configuration % parameterValues.length];
+            configuration /= parameterValues.length;
+        }
+        return configurationValues;
+    }
+
+    /**
+     * Run all the configurations, and write the results table. The header is written first,
+     * then the rows in the order the configurations end; the first column gives the index of
+     * the configuration.
+     *
+     * @param out
+     *            Where to write the table.
+     */
+    public void run(final Appendable out) throws IOException, InterruptedException {
+        out.append(getHeader()).append('\n');
+
+        final int configurations = getConfigurationCount();
+        final AtomicInteger nextConfiguration = new AtomicInteger();
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(() -> {
+                int configuration;
+                while ((configuration = nextConfiguration.getAndIncrement()) < configurations) {
+                    String row = getRow(configuration, runConfiguration(configuration));
+                    synchronized (out) {
+                        out.append(row).append('\n');
+                    }
+                }
+                return null;
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> worker : pool.invokeAll(workers)) {
+                worker.get();
+            }
+        } catch (ExecutionException theE) {
+            if (theE.getCause() instanceof IOException) throw (IOException) theE.getCause();
+            throw new IllegalStateException("A configuration failed", theE.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the replicas of a configuration.
+     *
+     * @param configuration
+     *            The index of the configuration.
+     * @return the statistics of the replicas
+     */
+    public EnsembleResult runConfiguration(int configuration) {
+        Scenario scenario = baseScenario.with(parameters.toArray(new Scenario.Parameter[0]), getConfiguration(configuration));
+        EnsembleResult result = new EnsembleResult();
+        for (int replica = 0; replica < replicas; replica++) {
+            long replicaSeed = RandomStream.key(seed, replica);
+            Simulator simulator = new Simulator(depth, width, neighbourhoodType, null, replicaSeed, scenario);
+            result.add(Ensemble.runReplica(simulator, steps));
+        }
+        return result;
+    }
+
+    private String getHeader() {
+        StringBuilder header = new StringBuilder("configuration");
+        for (Scenario.Parameter parameter : parameters) {
+            header.append(',').append(parameter);
+        }
+        header.append(",replicas");
+        for (String metric : new String[]{EnsembleResult.PEAK_INFECTED, EnsembleResult.TIME_TO_PEAK, EnsembleResult.DEATHS}) {
+            header.append(',').append(metric).append(",").append(metric).append("Confidence");
+        }
+        return header.toString();
+    }
+
+    private String getRow(int configuration, EnsembleResult result) {
+        StringBuilder row = new StringBuilder().append(configuration);
+        for (double value : getConfiguration(configuration)) {
+            row.append(',').append(value);
+        }
+        row.append(',').append(result.getReplicaCount());
+        for (String metric : new String[]{EnsembleResult.PEAK_INFECTED, EnsembleResult.TIME_TO_PEAK, EnsembleResult.DEATHS}) {
+            Statistics statistics = result.getStatistics(metric);
+            row.append(String.format(Locale.ROOT, ",%.3f,%.3f", statistics.getMean(), statistics.getConfidenceWidth()));
+        }
+        return row.toString();
+    }
+}
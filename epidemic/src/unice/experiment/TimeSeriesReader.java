@@ -0,0 +1,185 @@
+package unice.experiment;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Reads the columns of a time series written by a TimeSeriesWriter in the binary format. Only the
+ * columns asked for are decoded, the other ones being skipped block by block.
+ * Can also be run to convert a time series to CSV: java unice.experiment.TimeSeriesReader file
+ *
+ * @author Romain Chaudron
+ */
+public class TimeSeriesReader {
+    private Path path;
+    private String[] columnNames;
+
+    /**
+     * Open a time series file, reading the names of its columns.
+     *
+     * @param thePath
+     *            The path of the file.
+     * @throws IOException
+     *            If the file can not be read, or is not a time series.
+     */
+    public TimeSeriesReader(Path thePath) throws IOException {
+        path = thePath;
+        try (DataInputStream in = open()) {
+            columnNames = readHeader(in);
+        }
+    }
+
+    /**
+     * Returns the names of the columns (see TimeSeriesWriter.getColumnNames).
+     *
+     * @return The names of the columns.
+     */
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * Read some columns of the whole time series.
+     *
+     * @param names
+     *            The names of the columns.
+     * @return The values of each column, in the order of the names.
+     * @throws IOException
+     *            If the file can not be read.
+     * @throws IllegalArgumentException
+     *            If a column does not exist, or is named twice.
+     */
+    public int[][] readColumns(String... names) throws IOException {
+        // Position in the result of each column of the file, -1 if not read
+        int[] wanted = new int[columnNames.length];
+        Arrays.fill(wanted, -1);
+        for (int i = 0; i < names.length; i++) {
+            int column = Arrays.asList(columnNames).indexOf(names[i]);
+            if (column < 0) throw new IllegalArgumentException("No column " + names[i] + " in " + path);
+            if (wanted[column] >= 0) throw new IllegalArgumentException("Column " + names[i] + " named twice");
+            wanted[column] = i;
+        }
+
+        int capacity = TimeSeriesWriter.BLOCK_ROWS;
+        int[][] values = new int[names.length][capacity];
+        int rows = 0;
+        byte[] bytes = new byte[0];
+        try (DataInputStream in = open()) {
+            readHeader(in);
+            int blockRows;
+            while ((blockRows = readBlockRows(in)) >= 0) {
+                if (rows + blockRows > capacity) {
+                    capacity = Math.max(rows + blockRows, capacity * 2);
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = Arrays.copyOf(values[i], capacity);
+                    }
+                }
+                for (int column = 0; column < columnNames.length; column++) {
+                    int length = in.readInt();
+                    if (wanted[column] < 0) {
+                        in.skipNBytes(length);
+                        continue;
+                    }
+                    if (bytes.length < length) bytes = new byte[length];
+                    in.readFully(bytes, 0, length);
+                    decode(bytes, blockRows, values[wanted[column]], rows);
+                }
+                rows += blockRows;
+            }
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Arrays.copyOf(values[i], rows);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the number of records of the next block, -1 at the end of the file. A file ending inside
+     * a block is not a time series.
+     */
+    private static int readBlockRows(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) return -1;
+        return first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+    }
+
+    /**
+     * Decode the differences of a column of a block.
+     */
+    private static void decode(byte[] bytes, int rows, int[] values, int offset) {
+        int position = 0;
+        int previous = 0;
+        for (int i = 0; i < rows; i++) {
+            int encoded = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = bytes[position++];
+                encoded |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += (encoded >>> 1) ^ -(encoded & 1);
+            values[offset + i] = previous;
+        }
+    }
+
+    /**
+     * Write the whole time series as CSV, with a line for the names of the columns.
+     *
+     * @param out
+     *            The output.
+     * @throws IOException
+     *            If the file can not be read.
+     */
+    public void writeCsv(PrintStream out) throws IOException {
+        int[][] values = readColumns(columnNames);
+        out.println(String.join(",", columnNames));
+        StringBuilder line = new StringBuilder();
+        int rows = values.length == 0 ? 0 : values[0].length;
+        for (int row = 0; row < rows; row++) {
+            line.setLength(0);
+            for (int column = 0; column < values.length; column++) {
+                if (column > 0) line.append(',');
+                line.append(values[column][row]);
+            }
+            out.println(line);
+        }
+    }
+
+    private DataInputStream open() throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+    }
+
+    private String[] readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != TimeSeriesWriter.MAGIC) throw new IOException("Not a time series: " + path);
+        int version = in.readInt();
+        if (version != TimeSeriesWriter.VERSION) throw new IOException("Unknown time series version " + version);
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    /**
+     * Convert a time series to CSV, on the standard output.
+     *
+     * @param args
+     *            The path of the time series.
+     * @throws IOException
+     *            If the file can not be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java unice.experiment.TimeSeriesReader file");
+            System.exit(1);
+        }
+        new TimeSeriesReader(Paths.get(args[0])).writeCsv(System.out);
+    }
+}
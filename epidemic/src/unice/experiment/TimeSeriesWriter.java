@@ -0,0 +1,258 @@
+package unice.experiment;
+
+import unice.display.SimulatorView;
+import unice.livingEntities.EntityStore;
+import unice.livingEntities.HealthStatusType;
+import unice.livingEntities.Species;
+import unice.map.Map;
+
+import java.awt.*;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Records the census of a simulation after each step: the number of entities of each species in
+ * each health status, and the new infections and deaths of each species since the previous record.
+ * It is added to the views of the simulator, so that it sees each step the views see (the idle
+ * steps skipped by the simulator are not recorded, the step column giving the gaps).
+ * <p>
+ * In the binary format, the records are kept in memory and written by blocks of BLOCK_ROWS, column
+ * by column: each column of a block is a sequence of variable length integers giving the
+ * differences between consecutive values, which are small as the counts change slowly, and
+ * starts with its length in bytes, so that a reader only decodes the columns it needs (see
+ * TimeSeriesReader). The CSV format writes one line per record, through a buffer.
+ *
+ * @author Romain Chaudron
+ */
+public class TimeSeriesWriter implements SimulatorView, Closeable {
+    // Formats of the file.
+    public enum Format { BINARY, CSV }
+
+    // Names of the columns which are not counts of a health status.
+    public static final String STEP = "step";
+    public static final String INFECTIONS = "infections";
+    public static final String DEATHS = "deaths";
+
+    static final int MAGIC = 0x464C5554;    // "FLUT"
+    static final int VERSION = 1;
+    // Number of records in a block of the binary format.
+    static final int BLOCK_ROWS = 4096;
+
+    private static final HealthStatusType[] HEALTH_STATUSES = HealthStatusType.values();
+
+    private Format format;
+    private Species[] species;          // Species recorded, in the order of the columns
+    private String[] columnNames;
+    private int[][] columns;            // Values of the records of the current block, by column
+    private int rows;                   // Number of records in the current block
+    private int[] infections;           // Infections of each species at the previous record
+    private int[] deaths;               // Deaths of each species at the previous record
+    private int[] row;                  // Values of the record being added
+
+    private DataOutputStream out;       // Output of the binary format
+    private ByteArrayOutputStream columnBytes = new ByteArrayOutputStream(); // Encoded column of a block
+    private Writer csv;                 // Output of the CSV format
+
+    /**
+     * Create a time series file, replacing the previous one.
+     *
+     * @param path
+     *            The path of the file.
+     * @param theFormat
+     *            The format of the file.
+     * @param entityClasses
+     *            The classes of living entities to record (ex: Pig.class), one species each.
+     * @throws IOException
+     *            If the file can not be created.
+     */
+    public TimeSeriesWriter(Path path, Format theFormat, Class<?>... entityClasses) throws IOException {
+        format = theFormat;
+        species = new Species[entityClasses.length];
+        for (int i = 0; i < species.length; i++) {
+            species[i] = Species.of(entityClasses[i]);
+        }
+        columnNames = new String[1 + species.length * (HEALTH_STATUSES.length + 2)];
+        int column = 0;
+        columnNames[column++] = STEP;
+        for (Species theSpecies : species) {
+            for (HealthStatusType status : HEALTH_STATUSES) {
+                columnNames[column++] = theSpecies.getName() + "." + status;
+            }
+            columnNames[column++] = theSpecies.getName() + "." + INFECTIONS;
+            columnNames[column++] = theSpecies.getName() + "." + DEATHS;
+        }
+        row = new int[columnNames.length];
+        infections = new int[species.length];
+        deaths = new int[species.length];
+
+        if (format == Format.BINARY) {
+            columns = new int[columnNames.length][BLOCK_ROWS];
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(columnNames.length);
+            for (String name : columnNames) {
+                out.writeUTF(name);
+            }
+        } else {
+            csv = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8), 1 << 16);
+            csv.write(String.join(",", columnNames));
+            csv.write('\n');
+        }
+    }
+
+    /**
+     * Returns the names of the columns: the step, then for each species the count of each health
+     * status (ex: "Pig.SICK"), the new infections (ex: "Pig.infections") and the new deaths.
+     *
+     * @return The names of the columns.
+     */
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * Add the record of a step. The first record gives the infections and deaths since the
+     * entities of the map were created.
+     *
+     * @param step
+     *            The step.
+     * @param store
+     *            The entities of the map at that step.
+     * @throws IOException
+     *            If the file can not be written.
+     */
+    public void record(int step, EntityStore store) throws IOException {
+        int column = 0;
+        row[column++] = step;
+        for (int i = 0; i < species.length; i++) {
+            for (HealthStatusType status : HEALTH_STATUSES) {
+                row[column++] = store.count(species[i], status);
+            }
+            int infected = store.countInfections(species[i]);
+            int dead = store.count(species[i], HealthStatusType.DEAD);
+            row[column++] = infected - infections[i];
+            row[column++] = dead - deaths[i];
+            infections[i] = infected;
+            deaths[i] = dead;
+        }
+
+        if (format == Format.BINARY) {
+            for (int i = 0; i < row.length; i++) {
+                columns[i][rows] = row[i];
+            }
+            if (++rows == BLOCK_ROWS) writeBlock();
+        } else {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) csv.write(',');
+                csv.write(Integer.toString(row[i]));
+            }
+            csv.write('\n');
+        }
+    }
+
+    /**
+     * Write the records of the current block, column by column.
+     */
+    private void writeBlock() throws IOException {
+        out.writeInt(rows);
+        for (int[] values : columns) {
+            columnBytes.reset();
+            int previous = 0;
+            for (int i = 0; i < rows; i++) {
+                int delta = values[i] - previous;
+                writeVarInt((delta << 1) ^ (delta >> 31));
+                previous = values[i];
+            }
+            out.writeInt(columnBytes.size());
+            columnBytes.writeTo(out);
+        }
+        rows = 0;
+    }
+
+    /**
+     * Write an unsigned variable length integer in the current column, 7 bits per byte.
+     */
+    private void writeVarInt(int value) {
+        while ((value & ~0x7f) != 0) {
+            columnBytes.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        columnBytes.write(value);
+    }
+
+    /**
+     * Write the records not written yet.
+     *
+     * @throws IOException
+     *            If the file can not be written.
+     */
+    public void flush() throws IOException {
+        if (format == Format.BINARY) {
+            if (rows > 0) writeBlock();
+            out.flush();
+        } else {
+            csv.flush();
+        }
+    }
+
+    /**
+     * Write the records not written yet and close the file.
+     *
+     * @throws IOException
+     *            If the file can not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (format == Format.BINARY) {
+            out.close();
+        } else {
+            csv.close();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // The signature of SimulatorView
+    public void setColor(Class livingEntityClass, Color color) {
+    }
+
+    @Override
+    public boolean isViable(Map theMap) {
+        return theMap.getEntityStore().getLivingSpeciesCount() > 1;
+    }
+
+    /**
+     * Record the step shown.
+     *
+     * @throws UncheckedIOException
+     *            If the file can not be written.
+     */
+    @Override
+    public void showStatus(int step, Map theMap) {
+        try {
+            record(step, theMap.getEntityStore());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Start counting the infections and deaths again, as the entities of the map are replaced.
+     */
+    @Override
+    public void reset() {
+        Arrays.fill(infections, 0);
+        Arrays.fill(deaths, 0);
+    }
+}
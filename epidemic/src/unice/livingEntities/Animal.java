@@ -1,16 +1,11 @@
 package unice.livingEntities;
 
-import unice.map.Location;
 import unice.map.Map;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Random;
-
 /**
  * @author Loïc
  * Abstract class representing an Animal living entity.
- * Animal do not recover from a Virus, they are always dying.
+ * Animal do not recover from a Virus, they are always dying (see Species.isRecovering).
  * Animals can potentially infect humans in their neighbourhood
  */
 public abstract class Animal extends LivingEntity {
@@ -25,23 +20,13 @@ public abstract class Animal extends LivingEntity {
     }
 
     /**
+     * Constructor of a handle on an animal already in a store (see EntityStore.getEntity)
      *
+     * @param theStore store containing the animal
+     * @param theId id of the animal in the store
      */
-    @Override
-    public void act() {
-
-        // Call the LivingEntity base class method, to determine the new health status of the animal
-        super.act();
-
-        switch (getHealthStatus()){
-
-            case RECOVERING:
-                // Specific rule for animals: they CAN'T recover...
-                // ... virus always win...
-                setHealthStatus(HealthStatusType.DEAD);
-                return;
-        }
-
+    protected Animal(EntityStore theStore, int theId) {
+        super(theStore, theId);
     }
 
 
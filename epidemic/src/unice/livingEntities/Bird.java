@@ -11,4 +11,8 @@ public abstract class Bird extends Animal{
         super(theMap);
     }
 
+    protected Bird(EntityStore theStore, int theId){
+        super(theStore, theId);
+    }
+
 }
@@ -11,4 +11,8 @@ public class Chicken extends Bird{
         super(theMap);
     }
 
+    public Chicken(EntityStore theStore, int theId){
+        super(theStore, theId);
+    }
+
 }
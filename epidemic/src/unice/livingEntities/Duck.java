@@ -11,6 +11,10 @@ public class Duck extends Bird{
         super(theMap);
     }
 
+    public Duck(EntityStore theStore, int theId){
+        super(theStore, theId);
+    }
+
 
 
 
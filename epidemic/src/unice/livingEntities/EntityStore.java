@@ -0,0 +1,724 @@
+package unice.livingEntities;
+
+import unice.events.EventSink;
+import unice.map.Map;
+import unice.random.RandomStream;
+import unice.virus.Virus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author Loïc, Thomas
+ * Stores the state of all the living entities of a map in parallel arrays of primitive values, indexed
+ * by the id of the entity: species, health status, step of the next health status transition, virus,
+ * location and state of the random stream. No object is kept per entity: a LivingEntity is only a handle on
+ * its id, created on demand (see getEntity), so that the loops on the entities read contiguous memory
+ * instead of following references, and an entity costs a few bytes. The simulation makes the entities act
+ * through their ids (see act), without any handle.
+ * The store also keeps the set of the active entities, ie the ones having something to do at each
+ * step (see LivingEntity.isActive), so that the simulator does not visit the idle ones, and schedules
+ * the health status transitions in a TransitionWheel, so that the infected entities are only visited
+ * on the step of their next transition. It also keeps a census, ie the number of entities of each
+ * species in each health status, updated when an entity is added or changes status, so that counting
+ * the population does not depend on the size of the map. The infections and the health status transitions
+ * can be reported to an EventSink.
+ * Several threads can update different entities at the same time, but entities must be added by a
+ * single thread.
+ */
+public class EntityStore {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final HealthStatusType[] HEALTH_STATUSES = HealthStatusType.values();
+    private static final long NO_LOCATION = -1L;
+    private static final long NO_CELL = 1L << 62;  // Sort key of the entities without location, above all the cell indices
+
+    private Map map;                    // Map where the entities live
+    private long seed = System.nanoTime(); // Seed of the random streams of the entities
+    private int size;                   // Number of entities
+
+    private byte[] species;             // Id of the species of each entity
+    private byte[] healthStatus;        // Ordinal of the health status of each entity
+    private int[] dueStep;              // Step of the next health status transition of each entity, -1 if none
+    private byte[] virus;               // Id of the virus of each entity, 0 if none
+    private long[] location;            // Packed X and Y coordinates of each entity, NO_LOCATION if none
+    private long[] randomState;         // State of the random stream of each entity
+
+    private int[] active;               // Ids of the active entities, in the first activeCount cells
+    private int[] activePosition;       // Position of each entity in active, -1 if not active
+    private int activeCount;            // Number of active entities
+    private long[] sortKeys = new long[0]; // Buffer of sortActive
+
+    private int step;                   // Current step of the simulation
+    private TransitionWheel transitions = new TransitionWheel(); // Scheduled health status transitions
+
+    private Virus[] viruses = new Virus[1]; // Viruses by id, the id 0 meaning no virus
+
+    private int[] census = new int[Species.MAX_SPECIES * HEALTH_STATUSES.length]; // Entities by species and health status
+    private int[] statusCount = new int[HEALTH_STATUSES.length]; // Entities by health status
+    private int livingSpeciesCount;     // Number of species having at least one entity not DEAD
+    private int[] infectionCount = new int[Species.MAX_SPECIES]; // Infections of entities of each species, guarded by census
+
+    private EventSink eventSink;        // Receiver of the infections and transitions, or null
+
+    /**
+     * Constructor
+     * @param theMap Map where the entities live
+     */
+    public EntityStore(Map theMap) {
+        map = theMap;
+        species = new byte[INITIAL_CAPACITY];
+        healthStatus = new byte[INITIAL_CAPACITY];
+        dueStep = new int[INITIAL_CAPACITY];
+        virus = new byte[INITIAL_CAPACITY];
+        location = new long[INITIAL_CAPACITY];
+        randomState = new long[INITIAL_CAPACITY];
+        active = new int[INITIAL_CAPACITY];
+        activePosition = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the map where the entities live
+     * @return the map
+     */
+    public Map getMap() {
+        return map;
+    }
+
+    /**
+     * Defines the seed of the random streams of the entities added from now on.
+     * @param theSeed the seed
+     */
+    public void setSeed(long theSeed) {
+        seed = theSeed;
+    }
+
+    /**
+     * Returns the number of entities in the store
+     * @return the number of entities
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the entities. The ids of the entities are given again from 0, and the step
+     * is set back to 0.
+     */
+    public void clear() {
+        size = 0;
+        activeCount = 0;
+        step = 0;
+        transitions.clear();
+        synchronized (census) {
+            Arrays.fill(census, 0);
+            Arrays.fill(statusCount, 0);
+            livingSpeciesCount = 0;
+            Arrays.fill(infectionCount, 0);
+        }
+    }
+
+    /**
+     * Adds a new HEALTHY and inactive entity, without location
+     * @param theSpecies the species of the entity
+     * @return the id of the entity
+     */
+    public int add(Species theSpecies) {
+        if (size == species.length) {
+            int capacity = size * 2;
+            species = Arrays.copyOf(species, capacity);
+            healthStatus = Arrays.copyOf(healthStatus, capacity);
+            dueStep = Arrays.copyOf(dueStep, capacity);
+            virus = Arrays.copyOf(virus, capacity);
+            location = Arrays.copyOf(location, capacity);
+            randomState = Arrays.copyOf(randomState, capacity);
+            active = Arrays.copyOf(active, capacity);
+            activePosition = Arrays.copyOf(activePosition, capacity);
+        }
+        int id = size++;
+        species[id] = (byte) theSpecies.getId();
+        healthStatus[id] = (byte) HealthStatusType.HEALTHY.ordinal();
+        dueStep[id] = -1;
+        virus[id] = 0;
+        location[id] = NO_LOCATION;
+        // The stream only depends on the seed and on the id, ie the number of entities added before
+        randomState[id] = RandomStream.key(seed, id);
+        activePosition[id] = -1;
+        updateCensus(species[id] & 0xff, -1, healthStatus[id]);
+        return id;
+    }
+
+    /**
+     * Returns a handle on an entity, of the class of its species. The handle is created by each call, the
+     * handles on the same entity being equal.
+     * @param id id of the entity
+     * @return the entity
+     */
+    public LivingEntity getEntity(int id) {
+        return getSpecies(id).newHandle(this, id);
+    }
+
+    /**
+     * Makes an entity act (see LivingEntity.act). Nothing is allocated.
+     * @param id id of the entity
+     */
+    public void act(int id) {
+        LivingEntity.act(this, id);
+    }
+
+    /**
+     * Infects an entity with the virus of a contagious entity, unless it is dead or already infected
+     * (see LivingEntity.becomeSick)
+     * @param id id of the entity infected
+     * @param theVirus the virus
+     * @param sourceId id of the contagious entity, -1 for an initial infection
+     */
+    public void becomeSick(int id, Virus theVirus, int sourceId) {
+        LivingEntity.becomeSick(this, id, theVirus, sourceId);
+    }
+
+    /**
+     * Moves an entity to a location of the map (see LivingEntity.setLocation)
+     * @param id id of the entity
+     * @param x X coordinate of the new location
+     * @param y Y coordinate of the new location
+     */
+    public void moveTo(int id, int x, int y) {
+        LivingEntity.setLocation(this, id, x, y);
+    }
+
+    /**
+     * Adds an entity to the set of active entities, or removes it. As it is only called when the health
+     * status or the location of an entity changes, the set is simply locked.
+     * @param id id of the entity
+     * @param isActive true if the entity has something to do at each step
+     */
+    public synchronized void setActive(int id, boolean isActive) {
+        int position = activePosition[id];
+        if (isActive && position < 0) {
+            active[activeCount] = id;
+            activePosition[id] = activeCount++;
+        } else if (!isActive && position >= 0) {
+            // Move the last active entity in place of the removed one
+            int last = active[--activeCount];
+            active[position] = last;
+            activePosition[last] = position;
+            activePosition[id] = -1;
+        }
+    }
+
+    /**
+     * Check if an entity is in the set of active entities
+     * @param id id of the entity
+     * @return true if the entity is active
+     */
+    public synchronized boolean isActive(int id) {
+        return activePosition[id] >= 0;
+    }
+
+    /**
+     * Returns the number of active entities
+     * @return the number of active entities
+     */
+    public synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Sorts the set of active entities by the index of their cell (see Map.getCellIndex), ie chunk by chunk,
+     * then in the order of the cells of a chunk, the entities without location coming last. The entities
+     * joining the set are added at its end, so that the simulator sorts it again from time to time, the
+     * entities acting one after the other then reading neighbouring cells.
+     * The key of an entity is the index of its cell, which holds no other entity, the entity being found
+     * back from the map, or for an entity without location its id above all the cell indices.
+     */
+    public synchronized void sortActive() {
+        if (sortKeys.length < activeCount) {
+            sortKeys = new long[active.length];
+        }
+        for (int i = 0; i < activeCount; i++) {
+            int id = active[i];
+            sortKeys[i] = hasLocation(id) ? map.getCellIndex(getX(id), getY(id)) : NO_CELL | id;
+        }
+        Arrays.sort(sortKeys, 0, activeCount);
+        for (int i = 0; i < activeCount; i++) {
+            long key = sortKeys[i];
+            int id = key >= NO_CELL ? (int) key : map.getEntityIdAt(key);
+            active[i] = id;
+            activePosition[id] = i;
+        }
+    }
+
+    /**
+     * Copies the ids of the active entities. As entities join or leave the set while acting, the
+     * simulator iterates on such a copy.
+     * @param ids array receiving the ids, at least as long as the number of active entities
+     * @return the number of ids copied
+     */
+    public synchronized int copyActive(int[] ids) {
+        System.arraycopy(active, 0, ids, 0, activeCount);
+        return activeCount;
+    }
+
+    /**
+     * Returns the species of an entity
+     * @param id id of the entity
+     * @return the species of the entity
+     */
+    public Species getSpecies(int id) {
+        return Species.get(species[id] & 0xff);
+    }
+
+    /**
+     * Returns the id of the species of an entity, without reading the species registry
+     * @param id id of the entity
+     * @return the id of the species of the entity
+     */
+    public int getSpeciesId(int id) {
+        return species[id] & 0xff;
+    }
+
+    /**
+     * Returns the health status of an entity
+     * @param id id of the entity
+     * @return the health status of the entity
+     */
+    public HealthStatusType getHealthStatus(int id) {
+        return HEALTH_STATUSES[healthStatus[id]];
+    }
+
+    /**
+     * Defines the health status of an entity
+     * @param id id of the entity
+     * @param theHealthStatus the health status
+     */
+    public void setHealthStatus(int id, HealthStatusType theHealthStatus) {
+        int oldStatus = healthStatus[id];
+        int newStatus = theHealthStatus.ordinal();
+        if (oldStatus == newStatus) return;
+        healthStatus[id] = (byte) newStatus;
+        updateCensus(species[id] & 0xff, oldStatus, newStatus);
+        if (hasLocation(id)) map.markChanged(getX(id), getY(id));
+        if (eventSink != null) {
+            eventSink.transition(step, id, species[id] & 0xff, oldStatus, newStatus, getEventX(id), getEventY(id));
+        }
+    }
+
+    /**
+     * Restores the health status of an entity read from a saved state. The census is updated, but the change
+     * is not reported to the event sink, as it is not a transition of the simulation
+     * @param id id of the entity
+     * @param theHealthStatus the health status
+     */
+    public void restoreHealthStatus(int id, HealthStatusType theHealthStatus) {
+        int oldStatus = healthStatus[id];
+        int newStatus = theHealthStatus.ordinal();
+        if (oldStatus == newStatus) return;
+        healthStatus[id] = (byte) newStatus;
+        updateCensus(species[id] & 0xff, oldStatus, newStatus);
+        if (hasLocation(id)) map.markChanged(getX(id), getY(id));
+    }
+
+    /**
+     * Counts the infection of an entity, and reports it to the event sink, once its virus is defined
+     * @param sourceId id of the contagious entity, -1 for an initial infection
+     * @param targetId id of the entity infected
+     */
+    public void recordInfection(int sourceId, int targetId) {
+        synchronized (census) {
+            infectionCount[species[targetId] & 0xff]++;
+        }
+        if (eventSink != null) {
+            eventSink.infection(step, sourceId, targetId, species[targetId] & 0xff, virus[targetId] & 0xff,
+                    getEventX(targetId), getEventY(targetId));
+        }
+    }
+
+    /**
+     * Defines the receiver of the infections and of the health status transitions, or removes it. The sink
+     * is defined between two steps, and the viruses already known are declared to it.
+     * @param theEventSink the event sink, or null for none
+     */
+    public void setEventSink(EventSink theEventSink) {
+        eventSink = theEventSink;
+        declareViruses();
+    }
+
+    private void declareViruses() {
+        if (eventSink == null) return;
+        for (int i = 1; i < viruses.length; i++) {
+            eventSink.virus(i, viruses[i].getName());
+        }
+    }
+
+    private int getEventX(int id) {
+        return hasLocation(id) ? getX(id) : -1;
+    }
+
+    private int getEventY(int id) {
+        return hasLocation(id) ? getY(id) : -1;
+    }
+
+    /**
+     * Moves an entity from a cell of the census to another one.
+     * @param speciesId id of the species of the entity
+     * @param oldStatus ordinal of the previous health status, -1 for a new entity
+     * @param newStatus ordinal of the new health status
+     */
+    private void updateCensus(int speciesId, int oldStatus, int newStatus) {
+        int row = speciesId * HEALTH_STATUSES.length;
+        synchronized (census) {
+            int livingBefore = countLiving(row);
+            if (oldStatus >= 0) {
+                census[row + oldStatus]--;
+                statusCount[oldStatus]--;
+            }
+            census[row + newStatus]++;
+            statusCount[newStatus]++;
+            int livingAfter = countLiving(row);
+            if (livingBefore == 0 && livingAfter > 0) livingSpeciesCount++;
+            else if (livingBefore > 0 && livingAfter == 0) livingSpeciesCount--;
+        }
+    }
+
+    private int countLiving(int row) {
+        int living = 0;
+        for (int status = 0; status < HEALTH_STATUSES.length; status++) {
+            if (status != HealthStatusType.DEAD.ordinal()) living += census[row + status];
+        }
+        return living;
+    }
+
+    /**
+     * Returns the number of entities having the given health status
+     * @param theHealthStatus the health status
+     * @return the number of entities
+     */
+    public int count(HealthStatusType theHealthStatus) {
+        synchronized (census) {
+            return statusCount[theHealthStatus.ordinal()];
+        }
+    }
+
+    /**
+     * Returns the number of entities of the given species having the given health status
+     * @param theSpecies the species
+     * @param theHealthStatus the health status
+     * @return the number of entities
+     */
+    public int count(Species theSpecies, HealthStatusType theHealthStatus) {
+        synchronized (census) {
+            return census[theSpecies.getId() * HEALTH_STATUSES.length + theHealthStatus.ordinal()];
+        }
+    }
+
+    /**
+     * Returns the number of living entities (ie not DEAD) of the given species
+     * @param theSpecies the species
+     * @return the number of living entities
+     */
+    public int countLiving(Species theSpecies) {
+        synchronized (census) {
+            return countLiving(theSpecies.getId() * HEALTH_STATUSES.length);
+        }
+    }
+
+    /**
+     * Returns the number of infections of entities of the given species, initial infections included,
+     * since the store was cleared
+     * @param theSpecies the species
+     * @return the number of infections
+     */
+    public int countInfections(Species theSpecies) {
+        synchronized (census) {
+            return infectionCount[theSpecies.getId()];
+        }
+    }
+
+    /**
+     * Restores the number of infections of entities of a species read from a saved state
+     * @param theSpecies the species
+     * @param count the number of infections
+     */
+    public void restoreInfections(Species theSpecies, int count) {
+        synchronized (census) {
+            infectionCount[theSpecies.getId()] = count;
+        }
+    }
+
+    /**
+     * Returns the number of species having at least one living entity (ie not DEAD)
+     * @return the number of living species
+     */
+    public int getLivingSpeciesCount() {
+        synchronized (census) {
+            return livingSpeciesCount;
+        }
+    }
+
+    /**
+     * Returns the step of the next health status transition of an entity
+     * @param id id of the entity
+     * @return the step of the next transition, -1 if none
+     */
+    public int getDueStep(int id) {
+        return dueStep[id];
+    }
+
+    /**
+     * Schedules the next health status transition of an entity. LivingEntity.updateHealthStatus will be
+     * called at that step. Any transition previously scheduled for the entity is cancelled.
+     * @param id id of the entity
+     * @param period nb of steps before the transition, at least 1
+     */
+    public void scheduleTransition(int id, int period) {
+        int theDueStep = step + Math.max(1, period);
+        dueStep[id] = theDueStep;
+        transitions.schedule(id, theDueStep);
+    }
+
+    /**
+     * Cancels the next health status transition of an entity
+     * @param id id of the entity
+     */
+    public void cancelTransition(int id) {
+        dueStep[id] = -1;
+    }
+
+    /**
+     * Returns the current step of the simulation
+     * @return the current step
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * Moves the simulation to the given step, firing the health status transitions due at each step
+     * since the current one.
+     * @param theStep the new step
+     */
+    public void advanceTo(int theStep) {
+        while (step < theStep) {
+            step++;
+            transitions.fire(step, this);
+        }
+    }
+
+    /**
+     * Returns the step of the next scheduled health status transition
+     * @return the step of the next transition, -1 if no transition is scheduled
+     */
+    public int getNextTransitionStep() {
+        return transitions.getNextStep(step, this);
+    }
+
+    /**
+     * Returns the virus of an entity
+     * @param id id of the entity
+     * @return the virus infecting the entity, or null if none
+     */
+    public Virus getVirus(int id) {
+        return viruses[virus[id] & 0xff];
+    }
+
+    /**
+     * Defines the virus of an entity
+     * @param id id of the entity
+     * @param theVirus the virus infecting the entity, or null if none
+     */
+    public void setVirus(int id, Virus theVirus) {
+        virus[id] = (byte) getVirusId(theVirus);
+    }
+
+    /**
+     * Returns the id of a virus, and registers it if needed. The viruses are only registered when
+     * infecting an entity, which is never done by several threads at the same time.
+     * @param theVirus the virus, or null
+     * @return the id of the virus, 0 if null
+     */
+    private int getVirusId(Virus theVirus) {
+        if (theVirus == null) return 0;
+        for (int i = 1; i < viruses.length; i++) {
+            if (viruses[i] == theVirus) return i;
+        }
+        if (viruses.length == 256) {
+            throw new IllegalStateException("Too many viruses: " + theVirus.getName());
+        }
+        viruses = Arrays.copyOf(viruses, viruses.length + 1);
+        viruses[viruses.length - 1] = theVirus;
+        if (eventSink != null) eventSink.virus(viruses.length - 1, theVirus.getName());
+        return viruses.length - 1;
+    }
+
+    /**
+     * Check if an entity is on the map
+     * @param id id of the entity
+     * @return true if the entity has a location
+     */
+    public boolean hasLocation(int id) {
+        return location[id] != NO_LOCATION;
+    }
+
+    /**
+     * Returns the X coordinate of an entity
+     * @param id id of the entity
+     * @return the X coordinate, meaningless if the entity has no location
+     */
+    public int getX(int id) {
+        return (int) (location[id] >>> 32);
+    }
+
+    /**
+     * Returns the Y coordinate of an entity
+     * @param id id of the entity
+     * @return the Y coordinate, meaningless if the entity has no location
+     */
+    public int getY(int id) {
+        return (int) location[id];
+    }
+
+    /**
+     * Defines the location of an entity
+     * @param id id of the entity
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+    public void setLocation(int id, int x, int y) {
+        location[id] = ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Removes the location of an entity
+     * @param id id of the entity
+     */
+    public void clearLocation(int id) {
+        location[id] = NO_LOCATION;
+    }
+
+    /**
+     * Write the whole state of the store: the entities, the set of the active entities in its order, the
+     * scheduled transitions and the state of the random streams, so that the simulation goes on exactly the
+     * same way once read. The species and the viruses are written by name.
+     * @param out the output
+     * @throws IOException if the output fails
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeLong(seed);
+        out.writeInt(step);
+        out.writeInt(Species.count());
+        for (int i = 0; i < Species.count(); i++) {
+            out.writeUTF(Species.get(i).getEntityClass().getName());
+        }
+        out.writeInt(viruses.length);
+        for (int i = 1; i < viruses.length; i++) {
+            out.writeUTF(viruses[i].getName());
+        }
+        out.writeInt(size);
+        for (int id = 0; id < size; id++) {
+            out.writeByte(species[id]);
+            out.writeByte(healthStatus[id]);
+            out.writeInt(dueStep[id]);
+            out.writeByte(virus[id]);
+            out.writeLong(location[id]);
+            out.writeLong(randomState[id]);
+        }
+        for (int i = 0; i < Species.count(); i++) {
+            out.writeInt(countInfections(Species.get(i)));
+        }
+        synchronized (this) {
+            out.writeInt(activeCount);
+            for (int i = 0; i < activeCount; i++) {
+                out.writeInt(active[i]);
+            }
+        }
+        transitions.write(out);
+    }
+
+    /**
+     * Replace the entities of the store by the ones written by writeState, the entities keeping their ids. The entities are not placed on the map. Nothing is reported to
+     * the event sink, except the viruses.
+     * @param in the input
+     * @param knownViruses the viruses of the simulation, found by name
+     * @throws IOException if the input fails, or refers to an unknown species or virus
+     */
+    public void readState(DataInput in, Virus... knownViruses) throws IOException {
+        clear();
+        long theSeed = in.readLong();
+        int theStep = in.readInt();
+        Species[] speciesById = new Species[in.readInt()];
+        for (int i = 0; i < speciesById.length; i++) {
+            String className = in.readUTF();
+            try {
+                speciesById[i] = Species.forClassName(className);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unknown species: " + className, e);
+            }
+        }
+        Virus[] virusById = new Virus[in.readInt()];
+        for (int i = 1; i < virusById.length; i++) {
+            String name = in.readUTF();
+            for (Virus known : knownViruses) {
+                if (known.getName().equals(name)) virusById[i] = known;
+            }
+            if (virusById[i] == null) throw new IOException("Unknown virus: " + name);
+        }
+        viruses = virusById;
+        declareViruses();
+
+        int theSize = in.readInt();
+        for (int id = 0; id < theSize; id++) {
+            add(speciesById[in.readByte() & 0xff]);
+            restoreHealthStatus(id, HEALTH_STATUSES[in.readByte()]);
+            dueStep[id] = in.readInt();
+            virus[id] = in.readByte();
+            location[id] = in.readLong();
+            randomState[id] = in.readLong();
+        }
+        synchronized (census) {
+            for (int i = 0; i < speciesById.length; i++) {
+                infectionCount[speciesById[i].getId()] = in.readInt();
+            }
+        }
+        synchronized (this) {
+            activeCount = in.readInt();
+            for (int i = 0; i < activeCount; i++) {
+                active[i] = in.readInt();
+                activePosition[active[i]] = i;
+            }
+        }
+        transitions.read(in);
+        seed = theSeed;
+        step = theStep;
+    }
+
+    /**
+     * Returns the state of the random stream of an entity, to save it
+     * @param id id of the entity
+     * @return the state of the stream
+     */
+    public long getRandomState(int id) {
+        return randomState[id];
+    }
+
+    /**
+     * Restores the state of the random stream of an entity read from a saved state
+     * @param id id of the entity
+     * @param theRandomState the state of the stream (see getRandomState)
+     */
+    public void restoreRandomState(int id, long theRandomState) {
+        randomState[id] = theRandomState;
+    }
+
+    /**
+     * Draws the next random long of the stream of an entity
+     * @param id id of the entity
+     * @return a random long
+     */
+    public long nextRandom(int id) {
+        long state = RandomStream.nextState(randomState[id]);
+        randomState[id] = state;
+        return RandomStream.mix(state);
+    }
+}
@@ -2,21 +2,28 @@ package unice.livingEntities;
 
 import unice.map.Location;
 import unice.map.Map;
+import unice.random.RandomStream;
 import unice.virus.Virus;
 
 import java.util.List;
-import java.util.Random;
 
 /**
  * @author Loïc, Thomas
+ * The state of the entity (health status, virus, next transition, location, random stream) is kept
+ * in the EntityStore of its map, the entity itself only knows its id in the store. An entity is a
+ * flyweight handle: the store and the map only keep ids, and the handles are created on demand (see
+ * EntityStore.getEntity), two handles on the same entity being equal.
+ * The behaviour of the entities is written once, on ids, in the static methods of this class, so that
+ * the simulation creates no handle. It is the same for all the species, and only depends on the traits
+ * of the species of the entity (see Species): the humans move, the animals die instead of recovering.
  */
 public abstract class LivingEntity {
 
-    private HealthStatusType healthStatus=HealthStatusType.HEALTHY;
-    private Location location;
-    private Map map;
-    private Virus virus;        // Contains the virus infecting the entity, or null if the entity is healthy
-    private int sicknessCounter;   // Nb of days since the entity is Sick or Contagious
+    private final EntityStore store;  // Store containing the state of the entity
+    private final int id;             // Id of the entity in the store
+
+    // Indices of the neighbour cells, one array per thread making entities act
+    private static final ThreadLocal<long[]> NEIGHBOURS = ThreadLocal.withInitial(() -> new long[8]);
 
 
     /**
@@ -24,42 +31,103 @@ public abstract class LivingEntity {
      * @param theMap Map where the enity is going to live...and die !
      */
     public LivingEntity(Map theMap){
-        map = theMap;
+        store = theMap.getEntityStore();
+        id = store.add(Species.of(getClass()));
+    }
+
+    /**
+     * Constructor of a handle on an entity already in a store (see EntityStore.getEntity)
+     * @param theStore store containing the entity
+     * @param theId id of the entity in the store
+     */
+    protected LivingEntity(EntityStore theStore, int theId){
+        store = theStore;
+        id = theId;
+    }
+
+
+    /**
+     * Returns the id of the entity in the EntityStore of its map
+     * @return the id of the entity
+     */
+    public int getId() {
+        return id;
     }
 
+    /**
+     * Returns the species of the entity
+     * @return the species of the entity
+     */
+    public Species getSpecies() {
+        return store.getSpecies(id);
+    }
+
+    /**
+     * Returns the id of the species of the entity (see Species.getId)
+     * @return the id of the species
+     */
+    public int getSpeciesId() {
+        return store.getSpeciesId(id);
+    }
 
     /**
      * Returns the entity health status
      * @return : entity health status
      */
     public HealthStatusType getHealthStatus() {
-        return healthStatus;
+        return store.getHealthStatus(id);
     }
 
     /**
-     * Set a new Health Status, and reset the counter used to check the various 
-     * infection phases (incubation, contagous, recovery)
+     * Set a new Health Status, and schedule the end of the various infection
+     * phases (incubation, contagous, recovery)
      * @param theHealthStatus : the new health status of the entity
      */
     protected void setHealthStatus(HealthStatusType theHealthStatus) {
+        setHealthStatus(store, id, theHealthStatus);
+    }
+
+    /**
+     * Set a new Health Status of an entity (see setHealthStatus(HealthStatusType))
+     * @param store the store of the entity
+     * @param id the id of the entity
+     * @param theHealthStatus : the new health status of the entity
+     */
+    static void setHealthStatus(EntityStore store, int id, HealthStatusType theHealthStatus) {
         // If no change, do nothing...
-        if (theHealthStatus==healthStatus) return;
-        //System.out.println(this.getClass().getSimpleName()+ "=> " + theHealthStatus.toString());
+        if (theHealthStatus==store.getHealthStatus(id)) return;
 
         // Set the new Status...
-        healthStatus = theHealthStatus;
-        // Reset the counter for the period
-        sicknessCounter=0;
+        store.setHealthStatus(id, theHealthStatus);
+        store.setActive(id, isActive(store, id));
+        // Schedule the end of the period
+        Virus virus = store.getVirus(id);
+        switch (theHealthStatus) {
+            case SICK:
+                store.scheduleTransition(id, virus.getIncubationPeriod());
+                break;
+            case CONTAGIOUS:
+                store.scheduleTransition(id, virus.getContagiousPeriod());
+                break;
+            case RECOVERING:
+                store.scheduleTransition(id, virus.getRecoveryPeriod());
+                break;
+            default:
+                store.cancelTransition(id);
+                break;
+        }
         // If entity is Healthy again, virus is dead !
-        if (healthStatus==HealthStatusType.HEALTHY){
-            virus=null;
+        if (theHealthStatus==HealthStatusType.HEALTHY){
+            store.setVirus(id, null);
             return;
         }
-        if(healthStatus==HealthStatusType.DEAD){
-            virus=null;
+        if(theHealthStatus==HealthStatusType.DEAD){
+            store.setVirus(id, null);
             // Remove entity from the map
-            map.clear(location);
-            location=null;
+            if (store.hasLocation(id)) {
+                store.getMap().clear(store.getX(id), store.getY(id));
+                store.clearLocation(id);
+            }
         }
     }
 
@@ -68,7 +136,7 @@ public abstract class LivingEntity {
      * @return virus currently infecting the living entity
      */
     public Virus getVirus() {
-        return virus;
+        return store.getVirus(id);
     }
 
     /**
@@ -77,22 +145,44 @@ public abstract class LivingEntity {
      * @param theVirus virus infecting the entity
      */
     public void becomeSick(Virus theVirus){
+        becomeSick(store, id, theVirus, -1);
+    }
+
+    /**
+     * Defines the virus that infects the entity, caught from a contagious entity (see becomeSick(Virus)).
+     * @param theVirus virus infecting the entity
+     * @param source the contagious entity, or null for an initial infection
+     */
+    public void becomeSick(Virus theVirus, LivingEntity source){
+        becomeSick(store, id, theVirus, source == null ? -1 : source.getId());
+    }
+
+    /**
+     * Defines the virus that infects an entity (see becomeSick(Virus, LivingEntity)).
+     * @param store the store of the entity
+     * @param id the id of the entity
+     * @param theVirus virus infecting the entity
+     * @param sourceId the id of the contagious entity, or -1 for an initial infection
+     */
+    static void becomeSick(EntityStore store, int id, Virus theVirus, int sourceId){
         // If Dead, cannot become sick again...
-        if (healthStatus==HealthStatusType.DEAD) return;
+        if (store.getHealthStatus(id)==HealthStatusType.DEAD) return;
         // If already sick, do nothing...
-        if (virus !=null) return;
+        if (store.getVirus(id) !=null) return;
         // Got the virus, too bad !
-        virus=theVirus;
+        store.setVirus(id, theVirus);
+        store.recordInfection(sourceId, id);
         // Set the new status
-        setHealthStatus(HealthStatusType.SICK);
+        setHealthStatus(store, id, HealthStatusType.SICK);
     }
 
     /**
      * returns the location of the entity on the Map
-     * @return location of the entity on the map.
+     * @return location of the entity on the map, or null if the entity is not on the map.
      */
     public Location getLocation() {
-        return location;
+        if (!store.hasLocation(id)) return null;
+        return new Location(store.getX(id), store.getY(id));
     }
 
     /**
@@ -100,15 +190,39 @@ public abstract class LivingEntity {
      * @param newLocation
      */
     public void setLocation(Location newLocation) {
-        // Check if we try to move to thye same place !
-        if (newLocation.equals(location)) return;
-        // Cleanup the previous location
-        if(location != null) {
-            map.clear(location);
+        setLocation(newLocation.getX(), newLocation.getY());
+    }
+
+    /**
+     * Defines the new location of the entity on the Map
+     * @param x X coordinate of the new location
+     * @param y Y coordinate of the new location
+     */
+    public void setLocation(int x, int y) {
+        setLocation(store, id, x, y);
+    }
+
+    /**
+     * Defines the new location of an entity on the Map (see setLocation(int, int))
+     * @param store the store of the entity
+     * @param id the id of the entity
+     * @param x X coordinate of the new location
+     * @param y Y coordinate of the new location
+     */
+    static void setLocation(EntityStore store, int id, int x, int y) {
+        Map map = store.getMap();
+        if (store.hasLocation(id)) {
+            int previousX = store.getX(id);
+            int previousY = store.getY(id);
+            // Check if we try to move to thye same place !
+            if (previousX == x && previousY == y) return;
+            // Cleanup the previous location
+            map.clear(previousX, previousY);
         }
         // Assign the entity to the new location on the Map.
-        location = newLocation;
-        map.place(this, newLocation);
+        store.setLocation(id, x, y);
+        map.placeEntity(id, map.getCellIndex(x, y));
+        store.setActive(id, isActive(store, id));
     }
 
     /**
@@ -116,91 +230,172 @@ public abstract class LivingEntity {
      * @return the Map
      */
     public Map getMap() {
-        return map;
+        return store.getMap();
     }
 
     /**
-     * Update the health status of the entity, based on duration of the infection, 
-     * and on the Mortality rate of the virus
+     * Update the health status of the entity at the end of an infection phase, based
+     * on the Mortality rate of the virus. This method is called by the EntityStore,
+     * on the step scheduled when the entity entered its current health status.
      */
     protected void updateHealthStatus(){
-        switch (healthStatus){
+        updateHealthStatus(store, id);
+    }
+
+    /**
+     * Update the health status of an entity at the end of an infection phase (see updateHealthStatus()).
+     * The entities of a species not recovering (for example, the animals) die instead.
+     * @param store the store of the entity
+     * @param id the id of the entity
+     */
+    static void updateHealthStatus(EntityStore store, int id){
+        switch (store.getHealthStatus(id)){
 
             case SICK:
-                // Check if entity is sick since enough time to become Contagious;
-                if (sicknessCounter == virus.getIncubationPeriod()){
-                    setHealthStatus(HealthStatusType.CONTAGIOUS);
-                }
+                // Entity is sick since enough time to become Contagious;
+                setHealthStatus(store, id, HealthStatusType.CONTAGIOUS);
                 break;
 
             case CONTAGIOUS:
-                // Check if entity is sick since enough time to become Contagious;
-                if (sicknessCounter == virus.getContagiousPeriod()){
-
-                    // Decide if entity is either recovering or dying, based on the 
-                    // virus Mortality rate.
-                    Random rand = new Random();
-                    if (rand.nextDouble()< virus.getMortalityRate()){
-                        setHealthStatus(HealthStatusType.DEAD);
-                    }else{
-                        setHealthStatus(HealthStatusType.RECOVERING);
-                    }
+                // Decide if entity is either recovering or dying, based on the
+                // virus Mortality rate.
+                if (RandomStream.isBelow(store.nextRandom(id), store.getVirus(id).getMortalityThreshold())){
+                    setHealthStatus(store, id, HealthStatusType.DEAD);
+                }else{
+                    setHealthStatus(store, id, HealthStatusType.RECOVERING);
                 }
                 break;
 
             case RECOVERING:
-                // Check if entity is sick since enough time to become Contagious;
-                if (sicknessCounter == virus.getRecoveryPeriod()){
-                    // Determine is entity either Recover or Die from the virus.
-                    setHealthStatus(HealthStatusType.HEALTHY);
-                }
+                // Entity is recovering since enough time to be Healthy again;
+                setHealthStatus(store, id, HealthStatusType.HEALTHY);
                 break;
 
             default:
                 break;
         }
 
+        // Specific rule for animals: they CAN'T recover...
+        // ... virus always win...
+        if (store.getHealthStatus(id)==HealthStatusType.RECOVERING && !store.getSpecies(id).isRecovering()){
+            setHealthStatus(store, id, HealthStatusType.DEAD);
+        }
+    }
+
+    /**
+     * Check if the entity has something to do at each step, ie if act must be called. The CONTAGIOUS
+     * entities, trying to infect their neighbourhood, are active, and the moving ones (see Species.isMobile)
+     * as long as they are alive: the other health status transitions are scheduled (see updateHealthStatus).
+     * The simulator only calls act on the active entities, the set of active entities being updated
+     * when the health status or the location of the entity change.
+     * @return true if the entity is active
+     */
+    public boolean isActive() {
+        return isActive(store, id);
     }
 
     /**
-     * Provides the most basic action for an entity, by incrementing the time counter, and checking
-     * the new Health Status of the entity.
-     * If some health status do not exists for some entity (for example, the animals are not recovering
-     * but all dying, the child class can apply some additional logic by overriding that method.
+     * Check if an entity has something to do at each step (see isActive())
+     * @param store the store of the entity
+     * @param id the id of the entity
+     * @return true if the entity is active
+     */
+    static boolean isActive(EntityStore store, int id) {
+        HealthStatusType status = store.getHealthStatus(id);
+        if (store.getSpecies(id).isMobile()) return status != HealthStatusType.DEAD;
+        return status == HealthStatusType.CONTAGIOUS;
+    }
+
+    /**
+     * Provides the action of the entity at each step: when contagious, it tries to infect its neighbourhood,
+     * then it moves if its species is moving. The evolution of the Health Status of the entity is scheduled
+     * apart (see updateHealthStatus).
      */
     public void act(){
-        // If Dead then... stay dead !
-        if (healthStatus==HealthStatusType.DEAD) return;
+        act(store, id);
+    }
 
-        // If Living Entity has a virus, increment sickness time counter...
-        if (virus!=null) sicknessCounter++;
+    /**
+     * Provides the action of an entity at each step (see act()). Nothing is allocated.
+     * @param store the store of the entity
+     * @param id the id of the entity
+     */
+    static void act(EntityStore store, int id){
+        // If Dead then... stay dead !
+        if (store.getHealthStatus(id)==HealthStatusType.DEAD) return;
 
-        // Check if health status has evolved
-        updateHealthStatus();
+        Map map = store.getMap();
         // If Contagious, check if entity is infecting its neighbourhood
-        if (healthStatus==HealthStatusType.CONTAGIOUS) {
-            tryInfectNeighbourhood(getNeighbourhood());
+        if (store.getHealthStatus(id)==HealthStatusType.CONTAGIOUS) {
+            long[] neighbours = getNeighbourBuffer();
+            int count = map.getNeighbourCells(getCell(store, id), store.nextRandom(id), neighbours);
+            tryInfectNeighbourhood(store, id, neighbours, count);
         }
 
+        // A moving entity, like a human, can MOVE
+        if (store.getSpecies(id).isMobile() && store.getHealthStatus(id)!=HealthStatusType.DEAD) {
+            move(store, id);
+        }
+    }
+
+    /**
+     * Move an entity to one of the free adjacent locations
+     */
+    private static void move(EntityStore store, int id){
+        Map map = store.getMap();
+        // Pick one of the Free cells around the current location
+        long cell = map.getRandomFreeNeighbourCell(getCell(store, id), store.nextRandom(id));
+        // If some cells are available...
+        if (cell >= 0){
+            // During a synchronous step, the move is applied at the end of the step
+            if (map.isSynchronousStep()) {
+                map.requestMove(id, cell);
+            } else {
+                setLocation(store, id, map.getX(cell), map.getY(cell));
+            }
+        }
     }
 
     /**
      * Try to infect living entities on the map with the virus of the current entity
-     * @param locations list of location on the map to look for Lioving Entities to infect
+     * @param cells indices of the cells of the map to look for Living Entities to infect
+     * @param count number of cells, from the beginning of cells
+     */
+    protected void tryInfectNeighbourhood(long[] cells, int count){
+        tryInfectNeighbourhood(store, id, cells, count);
+    }
+
+    /**
+     * Try to infect living entities on the map with the virus of an entity. Only the cells holding
+     * entities of the group infected by its species are kept (see Species.getInfectedGroup): for
+     * example, humans can only infect other humans, and not animals.
+     * @param store the store of the entity
+     * @param id the id of the entity
+     * @param cells indices of the cells of the map to look for Living Entities to infect
+     * @param count number of cells, from the beginning of cells
      */
-    protected void tryInfectNeighbourhood(List<Location> locations){
+    private static void tryInfectNeighbourhood(EntityStore store, int id, long[] cells, int count){
         // If not contagious, entity cannot infect others
-        if (healthStatus!=HealthStatusType.CONTAGIOUS)return;
+        if (store.getHealthStatus(id)!=HealthStatusType.CONTAGIOUS)return;
 
-        // Loop on all location
-        for (Location loc : locations) {
-            // Get the living entity on the current location
-            LivingEntity entity=(LivingEntity) getMap().getEntityAt(loc);
+        Map map = store.getMap();
+        Virus virus = store.getVirus(id);
+        Class<?> infectedGroup = store.getSpecies(id).getInfectedGroup();
+        if (infectedGroup != null) count = map.findSpeciesCells(cells, count, infectedGroup);
+
+        // Loop on all cells
+        for (int i = 0; i < count; i++) {
+            // Get the living entity on the current cell
+            int target = map.getEntityIdAt(cells[i]);
             // Check if virus is dangerous for that type of entity
-            if (virus.canInfectEntity(entity)){
-                Random rand =new Random();
-                if (rand.nextDouble()<virus.getInfectionRate()){
-                    entity.becomeSick(virus);
+            if (target >= 0 && virus.canInfectSpecies(store.getSpeciesId(target))){
+                if (RandomStream.isBelow(store.nextRandom(id), virus.getInfectionThreshold())){
+                    // During a synchronous step, the infection is applied at the end of the step
+                    if (map.isSynchronousStep()) {
+                        map.requestInfection(id, target);
+                    } else {
+                        becomeSick(store, target, virus, id);
+                    }
                 }
 
             }
@@ -214,9 +409,61 @@ public abstract class LivingEntity {
      * @throws Exception
      */
     public List<Location> getNeighbourhood()  {
-        return map.getNeighbourhoodLocations(location);
+        return getMap().getNeighbourhoodLocations(getLocation(), nextRandom());
+    }
+
+    /**
+     * Returns the index of the cell of the entity on the Map (see Map.getCellIndex)
+     * @return the index of the cell
+     */
+    protected long getCell() {
+        return getCell(store, id);
+    }
+
+    private static long getCell(EntityStore store, int id) {
+        return store.getMap().getCellIndex(store.getX(id), store.getY(id));
+    }
+
+    /**
+     * Returns an array to receive the indices of the neighbour cells (see Map.getNeighbourCells). The array
+     * belongs to the calling thread and is reused by each call, so that acting allocates nothing.
+     * @return an array of at least 8 cells
+     */
+    protected static long[] getNeighbourBuffer() {
+        return NEIGHBOURS.get();
     }
 
+    /**
+     * Draws the next random long of the random stream of the entity. The numbers drawn only depend on
+     * the seed of the map and on the entity, so that they do not depend on the thread making the entity act.
+     * @return a random long
+     */
+    protected long nextRandom() {
+        return store.nextRandom(id);
+    }
+
+    /**
+     * Check if an object is a handle on the same entity
+     * @param obj the object to compare
+     * @return true if obj is a LivingEntity of the same store, with the same id
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof LivingEntity)) return false;
+        LivingEntity other = (LivingEntity) obj;
+        return other.store == store && other.id == id;
+    }
+
+    /**
+     * Returns a hash code, the same for all the handles on an entity
+     * @return the hash code
+     */
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+
 
 
 
@@ -11,4 +11,8 @@ public class Person extends Human{
         super(theMap);
     }
 
+    public Person(EntityStore theStore, int theId){
+        super(theStore, theId);
+    }
+
 }
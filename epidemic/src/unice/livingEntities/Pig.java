@@ -11,5 +11,9 @@ public class Pig extends Animal{
         super(theMap);
     }
 
+    public Pig(EntityStore theStore, int theId){
+        super(theStore, theId);
+    }
+
 
 }
@@ -0,0 +1,208 @@
+package unice.livingEntities;
+
+import unice.map.Map;
+
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+/**
+ * @author Loïc
+ * Describes a species of living entities (ex: Pig, Duck, Person).
+ * Each concrete class of LivingEntity is registered the first time it is used, and gets a dense
+ * id (0, 1, 2...), small enough to be stored in a byte by the EntityStore.
+ * The species of a class is found through a ClassValue, and the species of an id through an array
+ * replaced when a species is registered, so that both lookups take no lock once the species exists.
+ * A species is plain data: the behaviour of the entities is the same for all the species (see LivingEntity),
+ * and only depends on the traits of their species, read from the group of its class when it is registered:
+ * the humans move and only infect humans, the animals die instead of recovering. The class of a species
+ * only names it, and types the handles on its entities (see EntityStore.getEntity).
+ */
+public class Species {
+    // Maximum number of species, as the id of a species is stored in a byte
+    public static final int MAX_SPECIES = 256;
+
+    private static volatile Species[] species = new Species[0];  // Species by id
+    private static final ClassValue<Species> speciesByClass = new ClassValue<Species>() { // Species by class
+        @Override
+        protected Species computeValue(Class<?> entityClass) {
+            return register(entityClass);
+        }
+    };
+
+    private int id;             // Dense id of the species
+    private Class<?> entityClass;  // Class of the living entities of the species
+    private boolean mobile;     // True if the entities move at each step
+    private boolean recovering; // True if the entities can recover, instead of dying
+    private Class<?> infectedGroup; // Group of the entities infected, or null for any entity
+    private Constructor<?> handleConstructor; // Constructor of the handles, found on first use
+
+    /**
+     * Constructor
+     * @param theId dense id of the species
+     * @param theEntityClass class of the living entities of the species
+     */
+    private Species(int theId, Class<?> theEntityClass) {
+        id = theId;
+        entityClass = theEntityClass;
+        mobile = Human.class.isAssignableFrom(theEntityClass);
+        recovering = !Animal.class.isAssignableFrom(theEntityClass);
+        infectedGroup = mobile ? Human.class : null;
+    }
+
+    /**
+     * Returns the species of a class of living entities, and registers it if needed
+     * @param entityClass class of the living entities
+     * @return the species of that class
+     */
+    public static Species of(Class<?> entityClass) {
+        return speciesByClass.get(entityClass);
+    }
+
+    /**
+     * Registers a class of living entities. The ClassValue may compute the species of a class several times
+     * when several threads ask for it at the same time, but only keeps one, so the registry checks that the
+     * class is not registered yet.
+     * @param entityClass class of the living entities
+     * @return the species of that class
+     */
+    private static synchronized Species register(Class<?> entityClass) {
+        for (Species theSpecies : species) {
+            if (theSpecies.entityClass == entityClass) return theSpecies;
+        }
+        if (species.length == MAX_SPECIES) {
+            throw new IllegalStateException("Too many species: " + entityClass.getName());
+        }
+        Species theSpecies = new Species(species.length, entityClass);
+        Species[] newSpecies = Arrays.copyOf(species, species.length + 1);
+        newSpecies[theSpecies.id] = theSpecies;
+        species = newSpecies;
+        return theSpecies;
+    }
+
+    /**
+     * Returns the species with the given id
+     * @param id id of the species
+     * @return the species
+     */
+    public static Species get(int id) {
+        return species[id];
+    }
+
+    /**
+     * Returns the number of species registered
+     * @return the number of species
+     */
+    public static int count() {
+        return species.length;
+    }
+
+    /**
+     * Returns the dense id of the species
+     * @return the id of the species
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the class of the living entities of the species
+     * @return the class of the living entities
+     */
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * Returns the species of a class of living entities given by its name, and registers it if needed
+     * @param className the fully qualified name of the class (see Class.getName)
+     * @return the species of that class
+     * @throws ClassNotFoundException if the class can not be found
+     */
+    public static Species forClassName(String className) throws ClassNotFoundException {
+        return of(Class.forName(className));
+    }
+
+    /**
+     * Creates a living entity of the species on a map, using the constructor taking the map
+     * @param map the map where the entity lives
+     * @return the new entity
+     * @throws IllegalStateException if the class has no such constructor
+     */
+    public LivingEntity newEntity(Map map) {
+        try {
+            return (LivingEntity) entityClass.getConstructor(Map.class).newInstance(map);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can not create a " + getName(), e);
+        }
+    }
+
+    /**
+     * Creates a handle on an entity of the species, using the constructor taking the store and the id
+     * @param store the store of the entity
+     * @param entityId the id of the entity in the store
+     * @return the handle
+     * @throws IllegalStateException if the class has no such constructor
+     */
+    LivingEntity newHandle(EntityStore store, int entityId) {
+        try {
+            if (handleConstructor == null) {
+                handleConstructor = entityClass.getConstructor(EntityStore.class, int.class);
+            }
+            return (LivingEntity) handleConstructor.newInstance(store, entityId);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can not create a handle on a " + getName(), e);
+        }
+    }
+
+    /**
+     * Check if the entities of the species move at each step (the humans). A moving entity is active as
+     * long as it is alive, the other ones only when contagious.
+     * @return true if the entities move
+     */
+    public boolean isMobile() {
+        return mobile;
+    }
+
+    /**
+     * Check if the entities of the species can recover at the end of the contagious period. The other ones
+     * (the animals) always die: the virus always wins.
+     * @return true if the entities can recover
+     */
+    public boolean isRecovering() {
+        return recovering;
+    }
+
+    /**
+     * Returns the species group of the entities that the contagious entities of the species try to infect,
+     * the virus then deciding if they can be infected: the humans only infect other humans.
+     * @return the class of the group (ex: Human), or null for any entity
+     */
+    public Class<?> getInfectedGroup() {
+        return infectedGroup;
+    }
+
+    /**
+     * Check if the living entities of the species are of the given class or of one of its child classes
+     * @param group a class of living entities (ex: Bird, Human)
+     * @return true if the species belongs to the group
+     */
+    public boolean isA(Class<?> group) {
+        return group.isAssignableFrom(entityClass);
+    }
+
+    /**
+     * Returns the name of the species, ie the simple name of its class
+     * @return the name of the species
+     */
+    public String getName() {
+        return entityClass.getSimpleName();
+    }
+
+    /**
+     * Returns a String representation of the species
+     * @return the name of the species
+     */
+    public String toString() {
+        return getName();
+    }
+}
@@ -7,4 +7,5 @@ import unice.map.Map;
  */
 public class Superman extends Human {
     public Superman(Map theMap){super(theMap);}
+    public Superman(EntityStore theStore, int theId){super(theStore, theId);}
 }
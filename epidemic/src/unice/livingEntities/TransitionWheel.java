@@ -0,0 +1,125 @@
+package unice.livingEntities;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author Romain
+ * Timing wheel scheduling the health status transitions of the living entities of an EntityStore.
+ * As the periods of a virus are fixed, the step of the next transition of an entity is known as soon
+ * as it enters a health status. The entity is put in the bucket of that step (modulo the size of the
+ * wheel), and is only visited again when the step is reached, instead of counting the days at each step.
+ * The entries of an entity whose due step has changed since are simply dropped when their bucket is
+ * visited.
+ */
+class TransitionWheel {
+    private static final int WHEEL_SIZE = 64;           // Number of buckets, a power of two
+    private static final int MASK = WHEEL_SIZE - 1;
+    private static final int INITIAL_BUCKET_CAPACITY = 16;
+
+    private int[][] buckets = new int[WHEEL_SIZE][INITIAL_BUCKET_CAPACITY]; // Ids of the entities by due step
+    private int[] bucketSizes = new int[WHEEL_SIZE];                        // Number of ids in each bucket
+    private int[] spareBucket = new int[INITIAL_BUCKET_CAPACITY];           // Empty bucket, swapped with the fired one
+
+    /**
+     * Schedule a transition of an entity
+     * @param id id of the entity
+     * @param dueStep step of the transition
+     */
+    void schedule(int id, int dueStep) {
+        int bucket = dueStep & MASK;
+        int size = bucketSizes[bucket];
+        if (size == buckets[bucket].length) {
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], size * 2);
+        }
+        buckets[bucket][size] = id;
+        bucketSizes[bucket] = size + 1;
+    }
+
+    /**
+     * Remove all the scheduled transitions
+     */
+    void clear() {
+        Arrays.fill(bucketSizes, 0);
+    }
+
+    /**
+     * Fire the transitions due at the given step. The transitions scheduled while firing (the next
+     * transition of the entities) are put in the wheel as usual, even if they fall in the same bucket.
+     * @param step the step
+     * @param store the store of the entities
+     */
+    void fire(int step, EntityStore store) {
+        int bucket = step & MASK;
+        int[] entries = buckets[bucket];
+        int size = bucketSizes[bucket];
+        buckets[bucket] = spareBucket;
+        bucketSizes[bucket] = 0;
+
+        for (int i = 0; i < size; i++) {
+            int id = entries[i];
+            int dueStep = store.getDueStep(id);
+            if (dueStep == step) {
+                LivingEntity.updateHealthStatus(store, id);
+            } else if (dueStep > step && (dueStep & MASK) == bucket) {
+                // Transition due in a later turn of the wheel
+                schedule(id, dueStep);
+            }
+        }
+        spareBucket = entries;
+    }
+
+    /**
+     * Write the scheduled transitions, bucket by bucket and in order, so that they fire in the same order
+     * once read
+     * @param out the output
+     * @throws IOException if the output fails
+     */
+    void write(DataOutput out) throws IOException {
+        for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+            out.writeInt(bucketSizes[bucket]);
+            for (int i = 0; i < bucketSizes[bucket]; i++) {
+                out.writeInt(buckets[bucket][i]);
+            }
+        }
+    }
+
+    /**
+     * Replace the scheduled transitions by the ones written by write
+     * @param in the input
+     * @throws IOException if the input fails
+     */
+    void read(DataInput in) throws IOException {
+        for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+            int size = in.readInt();
+            if (buckets[bucket].length < size) {
+                buckets[bucket] = new int[size];
+            }
+            for (int i = 0; i < size; i++) {
+                buckets[bucket][i] = in.readInt();
+            }
+            bucketSizes[bucket] = size;
+        }
+    }
+
+    /**
+     * Returns the step of the next transition after the given step
+     * @param step the current step
+     * @param store the store of the entities
+     * @return the step of the next transition, or -1 if no transition is scheduled
+     */
+    int getNextStep(int step, EntityStore store) {
+        int nextStep = -1;
+        for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+            for (int i = 0; i < bucketSizes[bucket]; i++) {
+                int dueStep = store.getDueStep(buckets[bucket][i]);
+                if (dueStep > step && (dueStep & MASK) == bucket && (nextStep < 0 || dueStep < nextStep)) {
+                    nextStep = dueStep;
+                }
+            }
+        }
+        return nextStep;
+    }
+}
@@ -0,0 +1,107 @@
+package unice.map;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author Loïc
+ * A square of SIDE x SIDE cells of a map, allocated the first time one of its cells is used. The cell of
+ * local coordinates (LX,LY) has the local index LX * SIDE + LY, so that a column of the chunk is one long of
+ * each layer of bits (see Map): the bit LY of the long LX. A cell holds the id + 1 of its entity in the
+ * EntityStore of the map, 0 meaning an empty cell, so that a cell costs an int and no handle is kept.
+ * The cells and the bits are not changed during a synchronous step, the moves being claimed by target
+ * cell (see Map.requestMove) and applied at the end of the step.
+ * The chunk keeps the change stamp of the map (see Map.nextChangeStamp) when one of its cells or the health
+ * status of one of its entities last changed, so that a copy of the cells only copies the chunks changed since.
+ */
+class Chunk {
+    static final int BITS = 6;                  // Number of bits of a local coordinate
+    static final int SIDE = 1 << BITS;          // Side of a chunk
+    static final int MASK = SIDE - 1;           // Mask of a local coordinate
+    static final int CELLS = SIDE * SIDE;       // Number of cells of a chunk
+
+    final int x0;                               // Location X of the local cell (0,0)
+    final int y0;                               // Location Y of the local cell (0,0)
+
+    int[] cells = new int[CELLS];               // Id + 1 of the entity of each cell, 0 if empty
+    volatile long[][] layers;                   // Bits of each layer, SIDE longs per layer
+    volatile AtomicIntegerArray moveClaims;     // Move claims by local index, allocated by the first claim (see Map.requestMove)
+    int changeStamp;                            // Change stamp of the map when the chunk last changed
+
+    /**
+     * Constructor
+     * @param theX0 Location X of the local cell (0,0)
+     * @param theY0 Location Y of the local cell (0,0)
+     * @param layerCount number of layers of bits
+     */
+    Chunk(int theX0, int theY0, int layerCount) {
+        x0 = theX0;
+        y0 = theY0;
+        layers = new long[layerCount][SIDE];
+    }
+
+    /**
+     * Returns a bit of a layer
+     * @param layer the layer
+     * @param local the local index of the cell
+     * @return true if the bit is set
+     */
+    boolean get(int layer, int local) {
+        return (layers[layer][local >>> BITS] >>> local & 1) != 0;
+    }
+
+    /**
+     * Returns the bits of a layer for the neighbours of a cell far enough from the sides of the chunk
+     * @param layer the layer
+     * @param local the local index of the cell, not on a side of the chunk
+     * @param localOffsets local index offset of each neighbour
+     * @return the bit i being the bit of the neighbour i
+     */
+    int getNeighbourBits(int layer, int local, int[] localOffsets) {
+        long[] bits = layers[layer];
+        int neighbourBits = 0;
+        for (int i = 0; i < localOffsets.length; i++) {
+            int neighbour = local + localOffsets[i];
+            neighbourBits |= (int) (bits[neighbour >>> BITS] >>> neighbour & 1) << i;
+        }
+        return neighbourBits;
+    }
+
+    /**
+     * Place an entity in a cell, or clear the cell, and update the bits of the cell in all the layers
+     * @param local the local index of the cell
+     * @param id the id of the entity, or -1 to clear the cell
+     * @param entityLayers the layers where the entity is set (one bit each), the occupancy being added
+     */
+    void set(int local, int id, long entityLayers) {
+        long[][] currentLayers = layers;
+        cells[local] = id + 1;
+        long entityBits = id < 0 ? 0 : entityLayers | 1;
+        int column = local >>> BITS;
+        long bit = 1L << local;
+        for (int layer = 0; layer < currentLayers.length; layer++) {
+            if ((entityBits >>> layer & 1) != 0) {
+                currentLayers[layer][column] |= bit;
+            } else {
+                currentLayers[layer][column] &= ~bit;
+            }
+        }
+    }
+
+    /**
+     * Add a layer, filled from the cells
+     * @param isInLayer tells if an entity, given by its id, is set in the new layer
+     */
+    void addLayer(IntPredicate isInLayer) {
+        long[] bits = new long[SIDE];
+        for (int local = 0; local < CELLS; local++) {
+            if (cells[local] != 0 && isInLayer.test(cells[local] - 1)) {
+                bits[local >>> BITS] |= 1L << local;
+            }
+        }
+        long[][] newLayers = Arrays.copyOf(layers, layers.length + 1);
+        newLayers[layers.length] = bits;
+        layers = newLayers;
+    }
+}
@@ -0,0 +1,96 @@
+package unice.map;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * @author Loïc
+ * Finds the allocated chunks of a map from their coordinates, packed in a long (chunk X in the high 32 bits,
+ * chunk Y in the low ones), using an open addressing hash table. Several threads can look for chunks while
+ * one thread adds a chunk: the slot of an entry is written before its key is published.
+ */
+class ChunkDirectory {
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final long EMPTY = -1L;          // Key of the free entries, never a packed key
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final class Table {
+        final long[] keys;
+        final int[] slots;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            slots = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private int size;
+
+    /**
+     * Pack the coordinates of a chunk
+     * @param chunkX X coordinate of the chunk, not negative
+     * @param chunkY Y coordinate of the chunk, not negative
+     * @return the packed coordinates
+     */
+    static long key(int chunkX, int chunkY) {
+        return (long) chunkX << 32 | chunkY;
+    }
+
+    /**
+     * Returns the slot of a chunk
+     * @param key the packed coordinates of the chunk
+     * @return the slot of the chunk, or -1 if it is not allocated
+     */
+    int get(long key) {
+        Table current = table;
+        int mask = current.keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            long found = (long) KEYS.getAcquire(current.keys, i);
+            if (found == key) return current.slots[i];
+            if (found == EMPTY) return -1;
+        }
+    }
+
+    /**
+     * Add a chunk. Chunks are only added by one thread at a time.
+     * @param key the packed coordinates of the chunk, not in the directory yet
+     * @param slot the slot of the chunk
+     */
+    void put(long key, int slot) {
+        if ((size + 1) * 2 > table.keys.length) {
+            Table bigger = new Table(table.keys.length * 2);
+            Table current = table;
+            for (int i = 0; i < current.keys.length; i++) {
+                if (current.keys[i] != EMPTY) insert(bigger, current.keys[i], current.slots[i]);
+            }
+            table = bigger;
+        }
+        insert(table, key, slot);
+        size++;
+    }
+
+    /**
+     * Remove all the chunks
+     */
+    void clear() {
+        table = new Table(INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    private static void insert(Table target, long key, int slot) {
+        int mask = target.keys.length - 1;
+        int i = hash(key) & mask;
+        while (target.keys[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        target.slots[i] = slot;
+        KEYS.setRelease(target.keys, i, key);
+    }
+
+    private static int hash(long key) {
+        return Long.hashCode(key * 0x9E3779B97F4A7C15L);
+    }
+}
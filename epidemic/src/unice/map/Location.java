@@ -76,14 +76,14 @@ public class Location {
     }
 
     /**
-     * Use the top 16 bits for the x value and the bottom for
-     * the y. Except for very big grids, this should give a
-     * unique hash code for each (x,y) pair.
+     * Pack the x and y values in a long, then scramble its bits, so that
+     * the hash codes of nearby locations differ on all their bits, whatever
+     * the size of the grid.
      * @return A hashcode for the location.
      */
     public int hashCode()
     {
-        return (x << 16) + y;
+        return Long.hashCode((((long) x << 32) | (y & 0xffffffffL)) * 0x9E3779B97F4A7C15L);
     }
 
 
@@ -1,25 +1,82 @@
 package unice.map;
 
+import unice.livingEntities.EntityStore;
 import unice.livingEntities.LivingEntity;
+import unice.livingEntities.Species;
+import unice.random.RandomStream;
+import unice.virus.Virus;
 
-import java.util.Collections;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * @author Loïc
  * @author Michael Kölling and David J. Barnes
  * Represents a map where Living Entities of various species will live and cohabit.
+ * The cells are stored in chunks of 64 x 64 cells (see Chunk), allocated the first time one of their cells
+ * is used, so that a large map with a sparse population only costs the chunks where entities live. The
+ * chunks are found from their coordinates by a ChunkDirectory, and numbered in allocation order.
+ * A cell is designated by a long index (see getCellIndex) holding the number of its chunk and its local
+ * coordinates, so that the hot loops can work on indices instead of Location objects. The neighbours
+ * of a cell far from the sides of its chunk are found by adding precomputed offsets to its index, a mask
+ * telling which ones are inside the map.
+ * Layers of bits, one bit per cell, are kept in each chunk alongside the cells: the occupancy of the
+ * cells, and one layer per species group (ex: Human, Bird) queried with getSpeciesLayer. The free
+ * neighbours of a cell, or the neighbours of a given species group, are then found with a few bit
+ * operations, without reading the entities.
  */
 public class Map {
 
-    private Random rand = new Random(); // A random number for providing random locations.
+    private RandomStream random = new RandomStream(System.nanoTime()); // Random numbers for providing random locations.
+    private EntityStore store;          // State of the living entities created on the map
     private int width;             // Width of the map
     private int depth;             // Depth of the map
-    private LivingEntity[][] map;  // Array to store all living entities
+    private volatile Chunk[] chunks = new Chunk[16];    // Allocated chunks, by number (see getChunkIndex)
+    private volatile int chunkCount;                    // Number of allocated chunks
+    private final int maxChunks;                        // Number of chunks covering the map
+    private int changeStamp;                            // Stamp of the chunks changed from now on (see nextChangeStamp)
+    private int clearStamp;                             // Change stamp when the map was last cleared
+    private final ChunkDirectory directory = new ChunkDirectory();  // Number of each allocated chunk
     private NeighbourhoodType neighbourhoodType;
 
+    // Borders of the map where a cell can be, combined in a border class (see getBorderClass).
+    private static final int WEST = 1, EAST = 2, NORTH = 4, SOUTH = 8;
+    // Cell index: number of the chunk, then local X and local Y of the cell in the chunk.
+    private static final int CHUNK_SHIFT = 2 * Chunk.BITS;
+    private static final int LOCAL_MASK = Chunk.CELLS - 1;
+    private static final int MAX_CHUNKS = Integer.MAX_VALUE - 8;   // Largest array of chunks
+
+    private int[] neighbourXOffsets;    // X offset of each neighbour for the current neighbourhood type
+    private int[] neighbourYOffsets;    // Y offset of each neighbour for the current neighbourhood type
+    private int[] neighbourOffsets;     // Cell index offset of each neighbour in the same chunk, for the current neighbourhood type
+    private int[] neighbourMasks;       // Neighbours inside the map (one bit each) for each border class
+
+    // Layers of bits over the cells: the layer OCCUPANCY is set where the cell holds an entity, the
+    // following ones where it holds an entity of a species group. Each layer is a long bit of speciesLayers.
+    private static final int OCCUPANCY = 0;
+    private static final int MAX_LAYERS = 64;
+    private volatile Class<?>[] groups = {null};   // Species group of each layer from 1
+    private volatile long[] speciesLayers = {}; // Layers where an entity is set (one bit each), by species id
+
+    // Synchronous steps: entities read the map, which does not change during the step, their moves and
+    // infections being recorded as claims and applied when the step is over.
+    private volatile boolean synchronousStep;   // True while a synchronous step is running
+    // The claims can be recorded by several threads at the same time (see TileStepper). A claim holds
+    // the id + 1 of the winning entity, 0 meaning no claim, and the claimed indices are listed apart.
+    // The move claims are kept by target cell in each chunk, allocated by the first claim in the chunk.
+    private long[] claimedCells;                // Cells having a move claim, in the first claimedCellCount cells
+    private AtomicInteger claimedCellCount = new AtomicInteger();
+    private AtomicIntegerArray infectionClaims; // By id of the infected entity: contagious entity
+    private int[] infectedIds;                  // Entities having an infection claim, in the first infectedCount cells
+    private AtomicInteger infectedCount = new AtomicInteger();
+
     /**
      * Constructor with a defaut neighbourhood of FOUR
      * @param theWidth Width of the map (X axis)
@@ -38,9 +95,11 @@ public class Map {
     public Map(int theWidth, int theDepth, NeighbourhoodType theNeighbourhoodType) {
         width = theWidth;
         depth = theDepth;
-        neighbourhoodType = theNeighbourhoodType;
-        // Instantiate the Map
-        map = new LivingEntity[width][depth];
+        long chunksX = ((long) theWidth + Chunk.MASK) >>> Chunk.BITS;
+        long chunksY = ((long) theDepth + Chunk.MASK) >>> Chunk.BITS;
+        maxChunks = (int) Math.min(chunksX * chunksY, MAX_CHUNKS);
+        setNeighbourhoodType(theNeighbourhoodType);
+        store = new EntityStore(this);
     }
 
 
@@ -59,6 +118,23 @@ public class Map {
      */
     public void setNeighbourhoodType(NeighbourhoodType theNeighbourhoodType) {
         neighbourhoodType = theNeighbourhoodType;
+        neighbourXOffsets = theNeighbourhoodType.xOffsets;
+        neighbourYOffsets = theNeighbourhoodType.yOffsets;
+        neighbourOffsets = new int[neighbourXOffsets.length];
+        for (int i = 0; i < neighbourOffsets.length; i++) {
+            neighbourOffsets[i] = neighbourXOffsets[i] * Chunk.SIDE + neighbourYOffsets[i];
+        }
+        // A neighbour is outside the map when it goes past a border the cell is on
+        neighbourMasks = new int[16];
+        for (int borderClass = 0; borderClass < neighbourMasks.length; borderClass++) {
+            for (int i = 0; i < neighbourOffsets.length; i++) {
+                boolean outside = (neighbourXOffsets[i] < 0 && (borderClass & WEST) != 0)
+                        || (neighbourXOffsets[i] > 0 && (borderClass & EAST) != 0)
+                        || (neighbourYOffsets[i] < 0 && (borderClass & NORTH) != 0)
+                        || (neighbourYOffsets[i] > 0 && (borderClass & SOUTH) != 0);
+                if (!outside) neighbourMasks[borderClass] |= 1 << i;
+            }
+        }
     }
 
     /**
@@ -78,12 +154,290 @@ public class Map {
     }
 
 
-    // Empty the map
-    public void clear() {
-        for (int x = 0; x < getWidth(); x++) {
-            for (int y = 0; y < getDepth(); y++) {
-                map[x][y] = null;
+    /**
+     * Return the number of cells of the map, most of them possibly not allocated
+     * @return width * depth
+     */
+    public long getCellCount() {
+        return (long) width * depth;
+    }
+
+    /**
+     * Return the number of chunks allocated, numbered from 0 in allocation order
+     * @return the number of chunks
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Return an allocated chunk
+     * @param chunk the number of the chunk, from 0 to getChunkCount() - 1
+     */
+    Chunk getChunk(int chunk) {
+        return chunks[chunk];
+    }
+
+    /**
+     * Return the side of a chunk, in cells
+     * @return the side
+     */
+    public static int getChunkSide() {
+        return Chunk.SIDE;
+    }
+
+    /**
+     * Copy the cells of an allocated chunk, the cell of local coordinates (LX,LY) being copied at the index
+     * LX * getChunkSide() + LY. Not to be called during a step.
+     * @param chunk the number of the chunk, from 0 to getChunkCount() - 1
+     * @param ids receives the id + 1 of the entity of each cell, 0 for an empty cell, getChunkSide()^2 ints
+     * @return the index of the cell (0,0) of the chunk
+     */
+    public long copyChunk(int chunk, int[] ids) {
+        System.arraycopy(chunks[chunk].cells, 0, ids, 0, Chunk.CELLS);
+        return (long) chunk << CHUNK_SHIFT;
+    }
+
+    /**
+     * Start a new change stamp. The chunks are stamped with the current change stamp when one of their cells,
+     * or the health status of one of their entities, changes, so that a copy of the cells taken at a stamp
+     * only needs to copy again the chunks stamped with it or a later one (see isChangedSince). The threads of a
+     * step all stamp the chunks with the same value. Not to be called during a step.
+     * @return the new change stamp
+     */
+    public int nextChangeStamp() {
+        return ++changeStamp;
+    }
+
+    /**
+     * Check if a chunk changed since a copy of the cells was taken, the map not having been cleared since
+     * (see isClearedSince)
+     * @param chunk the number of the chunk, from 0 to getChunkCount() - 1
+     * @param stamp the change stamp returned by nextChangeStamp when the copy was taken
+     * @return true if the chunk changed at the stamp or later
+     */
+    public boolean isChangedSince(int chunk, int stamp) {
+        return chunks[chunk].changeStamp >= stamp;
+    }
+
+    /**
+     * Check if the map was cleared since a copy of the cells was taken, all its chunks being freed
+     * @param stamp the change stamp returned by nextChangeStamp when the copy was taken
+     * @return true if the map was cleared at the stamp or later
+     */
+    public boolean isClearedSince(int stamp) {
+        return clearStamp >= stamp;
+    }
+
+    /**
+     * Stamp the chunk of a location as changed, when the state of its entity changes without the cell
+     * changing (see EntityStore.setHealthStatus)
+     * @param x Location X, inside the map
+     * @param y Location Y, inside the map
+     */
+    public void markChanged(int x, int y) {
+        long cell = findCell(x, y);
+        if (cell >= 0) chunks[chunkOf(cell)].changeStamp = changeStamp;
+    }
+
+    /**
+     * Return the number of the chunk of a cell
+     * @param cell index of the cell (see getCellIndex)
+     * @return the number of the chunk holding the cell, from 0 to getChunkCount() - 1
+     */
+    public int getChunkIndex(long cell) {
+        return chunkOf(cell);
+    }
+
+    private static int chunkOf(long cell) {
+        return (int) (cell >>> CHUNK_SHIFT);
+    }
+
+    private static int localOf(long cell) {
+        return (int) cell & LOCAL_MASK;
+    }
+
+    /**
+     * Check if a location is inside the map
+     * @param x Location X
+     * @param y Location Y
+     * @return true if the location is inside the map
+     */
+    public boolean isInside(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < depth;
+    }
+
+    /**
+     * Return the index of a cell, allocating its chunk if needed. The index holds the number of the chunk
+     * (see getChunkIndex), then the local X and the local Y of the cell in the chunk, 6 bits each.
+     * @param x Location X, inside the map
+     * @param y Location Y, inside the map
+     * @return the index of the cell
+     * @throws IndexOutOfBoundsException if the location is outside the map
+     */
+    public long getCellIndex(int x, int y) {
+        if (!isInside(x, y)) {
+            throw new IndexOutOfBoundsException("Location " + x + "," + y + " outside the map of " + width + " x " + depth);
+        }
+        long key = ChunkDirectory.key(x >>> Chunk.BITS, y >>> Chunk.BITS);
+        int chunk = directory.get(key);
+        if (chunk < 0) chunk = allocateChunk(key, x & ~Chunk.MASK, y & ~Chunk.MASK);
+        return (long) chunk << CHUNK_SHIFT | (x & Chunk.MASK) << Chunk.BITS | (y & Chunk.MASK);
+    }
+
+    /**
+     * Returns the index of a cell inside the map, or -1 if its chunk is not allocated
+     */
+    private long findCell(int x, int y) {
+        int chunk = directory.get(ChunkDirectory.key(x >>> Chunk.BITS, y >>> Chunk.BITS));
+        if (chunk < 0) return -1;
+        return (long) chunk << CHUNK_SHIFT | (x & Chunk.MASK) << Chunk.BITS | (y & Chunk.MASK);
+    }
+
+    /**
+     * Allocate a chunk, unless another thread did it first. The chunk is published in the directory
+     * once it is complete, so that the other threads can look for chunks without locking. The array of
+     * the chunks grows up to the number of chunks covering the map.
+     * @param key the packed coordinates of the chunk (see ChunkDirectory.key)
+     * @param x0 Location X of the first cell of the chunk
+     * @param y0 Location Y of the first cell of the chunk
+     * @return the number of the chunk
+     */
+    private synchronized int allocateChunk(long key, int x0, int y0) {
+        int chunk = directory.get(key);
+        if (chunk >= 0) return chunk;
+        chunk = chunkCount;
+        if (chunk == maxChunks) {
+            throw new IllegalStateException("Too many chunks allocated: " + chunk);
+        }
+        Chunk[] allocated = chunks;
+        if (chunk == allocated.length) {
+            allocated = Arrays.copyOf(allocated, (int) Math.min(chunk * 2L, maxChunks));
+        }
+        allocated[chunk] = new Chunk(x0, y0, groups.length);
+        chunks = allocated;
+        chunkCount = chunk + 1;
+        directory.put(key, chunk);
+        return chunk;
+    }
+
+    /**
+     * Return the X coordinate of a cell
+     * @param cell index of the cell
+     * @return Location X of the cell
+     */
+    public int getX(long cell) {
+        return chunks[chunkOf(cell)].x0 + (localOf(cell) >>> Chunk.BITS);
+    }
+
+    /**
+     * Return the Y coordinate of a cell
+     * @param cell index of the cell
+     * @return Location Y of the cell
+     */
+    public int getY(long cell) {
+        return chunks[chunkOf(cell)].y0 + (localOf(cell) & Chunk.MASK);
+    }
+
+    /**
+     * Returns the store containing the state of the living entities created on the map
+     * @return the store of the living entities
+     */
+    public EntityStore getEntityStore() {
+        return store;
+    }
+
+    /**
+     * Defines the seed of the random streams of the living entities created from now on. The stream of
+     * an entity only depends on that seed and on the number of entities created before, so that a
+     * simulation populated in the same order always gets the same random numbers.
+     * @param theSeed the seed
+     */
+    public void setSeed(long theSeed) {
+        store.setSeed(theSeed);
+        random.setState(RandomStream.key(theSeed, -1));
+    }
+
+    // Empty the map, forget the living entities created on it, and free the chunks
+    public synchronized void clear() {
+        store.clear();
+        directory.clear();
+        chunks = new Chunk[16];
+        chunkCount = 0;
+        clearStamp = changeStamp;
+    }
+
+    /**
+     * Write the whole state of the map, between two steps: the state of the entity store (see
+     * EntityStore.writeState), then the allocated chunks in their allocation order, the cells of a chunk
+     * being written as runs of empty cells, each followed by the id of an entity.
+     * @param out the output
+     * @throws IOException if the output fails
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeLong(random.getState());
+        store.writeState(out);
+        int count = chunkCount;
+        out.writeInt(count);
+        for (int c = 0; c < count; c++) {
+            Chunk chunk = chunks[c];
+            out.writeInt(chunk.x0);
+            out.writeInt(chunk.y0);
+            int run = 0;
+            for (int local = 0; local < Chunk.CELLS; local++) {
+                int id = chunk.cells[local] - 1;
+                if (id < 0) {
+                    run++;
+                } else {
+                    writeVarInt(out, run);
+                    writeVarInt(out, id);
+                    run = 0;
+                }
             }
+            if (run > 0) writeVarInt(out, run);
+        }
+    }
+
+    /**
+     * Replace the state of the map by the one written by writeState. The chunks are allocated in the same
+     * order, so that the cells get the same indices.
+     * @param in the input
+     * @param viruses the viruses of the simulation, found by name
+     * @throws IOException if the input fails, or refers to an unknown species or virus
+     */
+    public void readState(DataInput in, Virus... viruses) throws IOException {
+        clear();
+        random.setState(in.readLong());
+        store.readState(in, viruses);
+        int count = in.readInt();
+        for (int c = 0; c < count; c++) {
+            int x0 = in.readInt();
+            int y0 = in.readInt();
+            long first = getCellIndex(x0, y0);
+            int local = 0;
+            while (local < Chunk.CELLS) {
+                local += readVarInt(in);
+                if (local >= Chunk.CELLS) break;
+                placeEntity(readVarInt(in), first + local);
+                local++;
+            }
+        }
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
         }
     }
 
@@ -93,7 +447,38 @@ public class Map {
      * @param location : coordinates (X,Y) of the place to clear
      */
     public void clear(Location location) {
-        map[location.getX()][location.getY()] = null;
+        clear(location.getX(), location.getY());
+    }
+
+    /**
+     * Clear a specific place in the map
+     *
+     * @param x      : Location X of the place to clear.
+     * @param y      : Location Y of the place to clear.
+     */
+    public void clear(int x, int y) {
+        clear(getCellIndex(x, y));
+    }
+
+    /**
+     * Clear a specific place in the map
+     *
+     * @param cell   : index of the cell to clear (see getCellIndex).
+     */
+    public void clear(long cell) {
+        setCell(cell, -1);
+    }
+
+    /**
+     * Clear several places in the map
+     *
+     * @param cells  : indices of the cells to clear (see getCellIndex).
+     * @param count  : number of cells to clear, from the beginning of cells.
+     */
+    public void clearAll(long[] cells, int count) {
+        for (int i = 0; i < count; i++) {
+            setCell(cells[i], -1);
+        }
     }
 
 
@@ -115,7 +500,226 @@ public class Map {
      * @param y      : Location Y of the location.
      */
     public void place(LivingEntity entity, int x, int y) {
-        map[x][y] = entity;
+        place(entity, getCellIndex(x, y));
+    }
+
+    /**
+     * Place an entity at the given place, and replace the existing one if any
+     *
+     * @param entity The living entity to be placed.
+     * @param cell   : index of the cell (see getCellIndex).
+     */
+    public void place(LivingEntity entity, long cell) {
+        setCell(cell, entity.getId());
+    }
+
+    /**
+     * Place an entity, given by its id, at the given place, and replace the existing one if any
+     *
+     * @param id     The id of the living entity in the store of the map (see getEntityStore).
+     * @param cell   : index of the cell (see getCellIndex).
+     */
+    public void placeEntity(int id, long cell) {
+        setCell(cell, id);
+    }
+
+    /**
+     * Place several entities, and replace the existing ones if any
+     *
+     * @param entities The living entities to be placed.
+     * @param cells    : index of the cell of each entity (see getCellIndex).
+     * @param count    : number of entities to place, from the beginning of the arrays.
+     */
+    public void placeAll(LivingEntity[] entities, long[] cells, int count) {
+        for (int i = 0; i < count; i++) {
+            setCell(cells[i], entities[i].getId());
+        }
+    }
+
+    /**
+     * Update a cell and its bits in the layers. The cells are not updated by several threads at the same
+     * time, the entities placing or clearing cells one after the other, and not during a synchronous step.
+     * @throws IllegalStateException during a synchronous step
+     */
+    private void setCell(long cell, int id) {
+        if (synchronousStep) {
+            throw new IllegalStateException("The map can not change during a synchronous step");
+        }
+        long entityLayers = id < 0 ? 0 : getSpeciesLayers(store.getSpeciesId(id));
+        Chunk chunk = chunks[chunkOf(cell)];
+        chunk.set(localOf(cell), id, entityLayers);
+        chunk.changeStamp = changeStamp;
+    }
+
+    /**
+     * Return the layer of a species group, ie the layer set where the cell holds an entity of the given
+     * class or of one of its child classes. The layer is created by the first call for the group.
+     * @param group the class of the species group (ex: Human, Bird, Pig)
+     * @return the index of the layer
+     */
+    public int getSpeciesLayer(Class<?> group) {
+        Class<?>[] knownGroups = groups;
+        for (int layer = 1; layer < knownGroups.length; layer++) {
+            if (knownGroups[layer] == group) return layer;
+        }
+        return addSpeciesLayer(group);
+    }
+
+    private synchronized int addSpeciesLayer(Class<?> group) {
+        for (int layer = 1; layer < groups.length; layer++) {
+            if (groups[layer] == group) return layer;
+        }
+        if (groups.length == MAX_LAYERS) {
+            throw new IllegalStateException("Too many species groups: " + group.getName());
+        }
+        int layer = groups.length;
+        Class<?>[] newGroups = Arrays.copyOf(groups, layer + 1);
+        newGroups[layer] = group;
+        speciesLayers = computeSpeciesLayers(newGroups, Species.count());
+
+        // The layer is only published once all the chunks have it, as the other threads may be reading
+        // them. The chunks allocated from now on get the new layer, as they are allocated under the same lock
+        Chunk[] allocated = chunks;
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            allocated[chunk].addLayer(id -> store.getSpecies(id).isA(group));
+        }
+        groups = newGroups;
+        return layer;
+    }
+
+    /**
+     * Returns the layers where an entity of a species is set, one bit each
+     * @param speciesId id of the species
+     */
+    private long getSpeciesLayers(int speciesId) {
+        long[] known = speciesLayers;
+        if (speciesId < known.length) return known[speciesId];
+        synchronized (this) {
+            if (speciesId >= speciesLayers.length) {
+                speciesLayers = computeSpeciesLayers(groups, Species.count());
+            }
+            return speciesLayers[speciesId];
+        }
+    }
+
+    private static long[] computeSpeciesLayers(Class<?>[] layerGroups, int speciesCount) {
+        long[] computed = new long[speciesCount];
+        for (int speciesId = 0; speciesId < speciesCount; speciesId++) {
+            Species species = Species.get(speciesId);
+            for (int layer = 1; layer < layerGroups.length; layer++) {
+                if (species.isA(layerGroups[layer])) computed[speciesId] |= 1L << layer;
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * Check if a cell holds an entity of a species group
+     * @param cell index of the cell, inside the map (see getCellIndex)
+     * @param layer the layer of the species group (see getSpeciesLayer)
+     * @return true if the cell holds an entity of the group
+     */
+    public boolean isSpeciesAt(long cell, int layer) {
+        return chunks[chunkOf(cell)].get(layer, localOf(cell));
+    }
+
+    /**
+     * Return the neighbours of a cell holding an entity of a species group as a mask: the bit i is set if
+     * the neighbour i (in the fixed order of getNeighbourCells) is inside the map and holds an entity of the
+     * group. Only the bits of the layer are read.
+     * @param cell index of the cell, inside the map (see getCellIndex)
+     * @param layer the layer of the species group (see getSpeciesLayer)
+     * @return the mask of the neighbours of the species group
+     */
+    public int getSpeciesNeighbourMask(long cell, int layer) {
+        return getNeighbourBits(cell, layer) & getNeighbourMask(cell);
+    }
+
+    /**
+     * Check if a cell holds an entity
+     * @param cell index of the cell, inside the map (see getCellIndex)
+     * @return true if the cell is occupied
+     */
+    public boolean isOccupied(long cell) {
+        return chunks[chunkOf(cell)].get(OCCUPANCY, localOf(cell));
+    }
+
+    /**
+     * Return the free neighbours of a cell as a mask: the bit i is set if the neighbour i (in the fixed
+     * order of getNeighbourCells) is inside the map and free. Only the occupancy bits are read.
+     * @param cell index of the cell, inside the map (see getCellIndex)
+     * @return the mask of the free neighbours, 4 or 8 bits depending on the neighbourhood type
+     */
+    public int getFreeNeighbourMask(long cell) {
+        return ~getNeighbourBits(cell, OCCUPANCY) & getNeighbourMask(cell);
+    }
+
+    /**
+     * Returns the bits of a layer for the neighbours of a cell, the bit i being the one of the neighbour i.
+     * The bits of the neighbours outside the map are not defined, and the ones of the neighbours in a chunk
+     * not allocated are 0.
+     */
+    private int getNeighbourBits(long cell, int layer) {
+        Chunk chunk = chunks[chunkOf(cell)];
+        int local = localOf(cell);
+        if (isFarFromSides(local)) return chunk.getNeighbourBits(layer, local, neighbourOffsets);
+
+        // The neighbours may be in other chunks
+        int x = chunk.x0 + (local >>> Chunk.BITS);
+        int y = chunk.y0 + (local & Chunk.MASK);
+        int mask = neighbourMasks[getBorderClass(x, y)];
+        int neighbourBits = 0;
+        for (int i = 0; i < neighbourOffsets.length; i++) {
+            if ((mask >>> i & 1) == 0) continue;
+            long neighbour = findCell(x + neighbourXOffsets[i], y + neighbourYOffsets[i]);
+            if (neighbour >= 0 && chunks[chunkOf(neighbour)].get(layer, localOf(neighbour))) {
+                neighbourBits |= 1 << i;
+            }
+        }
+        return neighbourBits;
+    }
+
+    /**
+     * Returns the neighbours of a cell inside the map, as a mask
+     */
+    private int getNeighbourMask(long cell) {
+        return neighbourMasks[getBorderClass(getX(cell), getY(cell))];
+    }
+
+    /**
+     * Check if all the neighbours of a cell are in the same chunk
+     */
+    private static boolean isFarFromSides(int local) {
+        int localX = local >>> Chunk.BITS;
+        int localY = local & Chunk.MASK;
+        return localX > 0 && localX < Chunk.MASK && localY > 0 && localY < Chunk.MASK;
+    }
+
+    /**
+     * Returns the index of the neighbour i of a cell, allocating its chunk if needed
+     */
+    private long getNeighbourCell(long cell, int i) {
+        int local = localOf(cell);
+        if (isFarFromSides(local)) return cell + neighbourOffsets[i];
+        return getCellIndex(getX(cell) + neighbourXOffsets[i], getY(cell) + neighbourYOffsets[i]);
+    }
+
+    /**
+     * Return a free neighbour of a cell, each free neighbour having the same probability to be chosen.
+     * Nothing is allocated, and several threads can call this method at the same time.
+     * @param cell index of the cell, inside the map (see getCellIndex)
+     * @param random a random long, from which the neighbour is chosen
+     * @return the index of the chosen neighbour, or -1 if all the neighbours are occupied
+     */
+    public long getRandomFreeNeighbourCell(long cell, long random) {
+        int free = getFreeNeighbourMask(cell);
+        if (free == 0) return -1;
+        // Select the k-th free neighbour, by clearing the k lowest bits of the mask
+        int k = RandomStream.toInt(random, Integer.bitCount(free));
+        for (int i = 0; i < k; i++) {
+            free &= free - 1;
+        }
+        return getNeighbourCell(cell, Integer.numberOfTrailingZeros(free));
     }
 
     /**
@@ -136,13 +740,139 @@ public class Map {
      * @return The entity at the given coordinate, or null if there is none.
      */
     public LivingEntity getEntityAt(int x, int y) {
+        if (!isInside(x, y)) return null;
+        // No chunk is allocated only to look at it
+        long cell = findCell(x, y);
+        return cell < 0 ? null : getEntityAt(cell);
+    }
 
-        try {
-            return map[x][y];
-        } catch (Exception theE) {
-            theE.printStackTrace();
-            return null;
+    /**
+     * Return the living entity at the given place, if any. A handle on the entity is created by each call
+     * (see EntityStore.getEntity).
+     *
+     * @param cell : index of the cell, inside the map (see getCellIndex).
+     * @return The entity in the given cell, or null if there is none.
+     */
+    public LivingEntity getEntityAt(long cell) {
+        int id = getEntityIdAt(cell);
+        return id < 0 ? null : store.getEntity(id);
+    }
+
+    /**
+     * Return the id of the living entity at the given place, if any. Nothing is allocated.
+     *
+     * @param cell : index of the cell, inside the map (see getCellIndex).
+     * @return The id of the entity in the given cell (see getEntityStore), or -1 if there is none.
+     */
+    public int getEntityIdAt(long cell) {
+        return chunks[chunkOf(cell)].cells[localOf(cell)] - 1;
+    }
+
+    /**
+     * Return the maximum number of neighbours of a cell, ie the size of the array to give to getNeighbourCells.
+     * @return 4 or 8, depending on the neighbourhood type
+     */
+    public int getMaxNeighbours() {
+        return neighbourOffsets.length;
+    }
+
+    /**
+     * Write the indices of the cells adjacent to a cell, inside the map, in a fixed order.
+     * Nothing is allocated but the chunks of the neighbours, and the cells far from the sides of their chunk
+     * are handled without any branch.
+     *
+     * @param cell : index of the cell (see getCellIndex).
+     * @param neighbours : array receiving the indices, of at least getMaxNeighbours() cells.
+     * @return the number of neighbours written
+     */
+    public int getNeighbourCells(long cell, long[] neighbours) {
+        int mask = getNeighbourMask(cell);
+        int count = 0;
+        if (isFarFromSides(localOf(cell))) {
+            for (int i = 0; i < neighbourOffsets.length; i++) {
+                // Always written, but only kept when the neighbour is inside the map
+                neighbours[count] = cell + neighbourOffsets[i];
+                count += (mask >>> i) & 1;
+            }
+            return count;
+        }
+        for (int i = 0; i < neighbourOffsets.length; i++) {
+            if ((mask >>> i & 1) != 0) neighbours[count++] = getNeighbourCell(cell, i);
         }
+        return count;
+    }
+
+    /**
+     * Write the indices of the cells adjacent to a cell, inside the map, sorted randomly using the given
+     * random key. The order is the one of getNeighbourhoodLocations(Location, long) with the same key.
+     * Nothing is allocated, and several threads can call this method at the same time.
+     *
+     * @param cell : index of the cell (see getCellIndex).
+     * @param randomKey : A random long, from which the order of the cells is derived.
+     * @param neighbours : array receiving the indices, of at least getMaxNeighbours() cells.
+     * @return the number of neighbours written
+     */
+    public int getNeighbourCells(long cell, long randomKey, long[] neighbours) {
+        int count = getNeighbourCells(cell, neighbours);
+
+        // Shuffle the cells (Fisher-Yates)
+        long state = randomKey;
+        for (int i = count - 1; i > 0; i--) {
+            state = RandomStream.nextState(state);
+            int j = RandomStream.toInt(RandomStream.mix(state), i + 1);
+            long swapped = neighbours[i];
+            neighbours[i] = neighbours[j];
+            neighbours[j] = swapped;
+        }
+        return count;
+    }
+
+    /**
+     * Write the indices of the free cells adjacent to a cell, sorted randomly using the given random key.
+     * Nothing is allocated, and several threads can call this method at the same time.
+     *
+     * @param cell : index of the cell (see getCellIndex).
+     * @param randomKey : A random long, from which the order of the cells is derived.
+     * @param neighbours : array receiving the indices, of at least getMaxNeighbours() cells.
+     * @return the number of free neighbours written
+     */
+    public int getFreeNeighbourCells(long cell, long randomKey, long[] neighbours) {
+        int count = getNeighbourCells(cell, randomKey, neighbours);
+        int free = 0;
+        for (int i = 0; i < count; i++) {
+            if (!isOccupied(neighbours[i])) {
+                neighbours[free++] = neighbours[i];
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Keep only the cells containing living entities of a specific species, in the same order.
+     *
+     * @param cells : indices of the cells to analyse, replaced by the ones kept.
+     * @param count : number of cells to analyse, from the beginning of cells.
+     * @param speciesClass Class of the specific species (ex: Pig, Birds..)
+     * @return the number of cells kept
+     */
+    public int findSpeciesCells(long[] cells, int count, Class<?> speciesClass) {
+        // The layer may be created by getSpeciesLayer, so that it must be called before reading the layers
+        int speciesLayer = getSpeciesLayer(speciesClass);
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (isSpeciesAt(cells[i], speciesLayer)) {
+                cells[found++] = cells[i];
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the borders of the map where a cell is (WEST, EAST, NORTH, SOUTH combined)
+     */
+    private int getBorderClass(int x, int y) {
+        return (x == 0 ? WEST : 0) | (x == width - 1 ? EAST : 0)
+                | (y == 0 ? NORTH : 0) | (y == depth - 1 ? SOUTH : 0);
     }
 
 
@@ -156,54 +886,37 @@ public class Map {
      */
     public List<Location> getNeighbourhoodLocations(Location location) {
 
-        // The list of locations to be returned.
-        List<Location> locations = new LinkedList<>();
-        try {
-            int x = location.getX();
-            int y = location.getY();
-            switch (neighbourhoodType)
-
-            {
-                case HEIGHT:
-                    for (int xOffset = -1; xOffset <= 1; xOffset++) {
-                        int nextX = x + xOffset;
-                        if (nextX >= 0 && nextX < width) {
-                            for (int yOffset = -1; yOffset <= 1; yOffset++) {
-                                int nextY = y + yOffset;
-                                // Exclude invalid locations and the original location.
-                                if (nextY >= 0 && nextY < depth
-                                        && (xOffset != 0 || yOffset != 0)) {
-                                    locations.add(new Location(nextX, nextY));
-                                }
-                            }
-                        }
-                    }
-                    break;
-
-                default:
-                    if (x > 0) {
-                        locations.add(new Location(x - 1, y));
-                    }
-                    if (x < (width - 1)) {
-                        locations.add(new Location(x + 1, y));
-                    }
-                    if (y > 0) {
-                        locations.add(new Location(x, y - 1));
-                    }
-                    if (y < (depth - 1)) {
-                        locations.add(new Location(x, y + 1));
-                    }
-                    break;
+        // Shuffle the list. Several other methods rely on the list
+        // being in a random order.
+        return getNeighbourhoodLocations(location, random.nextLong());
+    }
 
-            }
+    /**
+     * Return the list of locations adjacent to the given one, sorted randomly using the given
+     * random key. Several threads can call this method at the same time.
+     *
+     * @param location : The location from which to generate adjacencies.
+     * @param randomKey : A random long, from which the order of the list is derived.
+     * @return A list of locations adjacent to the one given
+     */
+    public List<Location> getNeighbourhoodLocations(Location location, long randomKey) {
+        long[] neighbours = new long[neighbourOffsets.length];
+        int count = getNeighbourCells(getCellIndex(location.getX(), location.getY()), randomKey, neighbours);
+        return toLocations(neighbours, count);
+    }
 
-            // Shuffle the list. Several other methods rely on the list
-            // being in a random order.
-            Collections.shuffle(locations, rand);
-        } catch (Exception theE) {
-            theE.printStackTrace();
+    /**
+     * Return the locations of some cells
+     *
+     * @param cells : indices of the cells.
+     * @param count : number of cells, from the beginning of cells.
+     * @return A list of the locations of the cells, in the same order
+     */
+    private List<Location> toLocations(long[] cells, int count) {
+        List<Location> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add(new Location(getX(cells[i]), getY(cells[i])));
         }
-
         return locations;
     }
 
@@ -214,12 +927,34 @@ public class Map {
      * @return list of free locations within the neighbourhood
      */
     public List<Location> getFreeNeigbourhoodLocations(Location location) {
+        return getFreeLocations(getNeighbourhoodLocations(location));
+    }
+
+    /**
+     * Returns the list of free locations within the neighbourhood
+     * The list is sorted randomly using the given random key.
+     * @param location the location for which we look for free adjacent locations
+     * @param randomKey a random long, from which the order of the list is derived
+     * @return list of free locations within the neighbourhood
+     */
+    public List<Location> getFreeNeigbourhoodLocations(Location location, long randomKey) {
+        long[] neighbours = new long[neighbourOffsets.length];
+        int count = getFreeNeighbourCells(getCellIndex(location.getX(), location.getY()), randomKey, neighbours);
+        return toLocations(neighbours, count);
+    }
+
+    /**
+     * Returns the subset of a list of locations that are free
+     * @param locations List of locations to analyse
+     * @return list of free locations, in the same order
+     */
+    private List<Location> getFreeLocations(List<Location> locations) {
 
         List<Location> freeLocations=new LinkedList<>();
         // Loop on all locations
-        for (Location loc: getNeighbourhoodLocations(location)) {
-            LivingEntity livingEntity = getEntityAt(loc);
-            if (livingEntity == null ){
+        for (Location loc: locations) {
+            long cell = isInside(loc.getX(), loc.getY()) ? findCell(loc.getX(), loc.getY()) : -1;
+            if (cell < 0 || !isOccupied(cell)){
                 freeLocations.add(loc);
             }
         }
@@ -234,16 +969,156 @@ public class Map {
      * @return list of locations containing the specified species
      */
     public List<Location> findSpeciesLocations(List<Location> locations, Class speciesClass){
+        int layer = getSpeciesLayer(speciesClass);
         List<Location> speciesLocations= new LinkedList<>();
         // Loop on neighbours
         for (Location loc:locations) {
-            LivingEntity livingEntity = getEntityAt(loc);
-            if ((livingEntity != null) && (speciesClass.isAssignableFrom(livingEntity.getClass()))){
+            long cell = isInside(loc.getX(), loc.getY()) ? findCell(loc.getX(), loc.getY()) : -1;
+            if (cell >= 0 && isSpeciesAt(cell, layer)){
                 speciesLocations.add(loc);
             }
         }
         return speciesLocations;
     }
 
+    /**
+     * Start a synchronous step. Until the end of the step, the map does not change, so that all the
+     * queries see it as it was at the beginning of the step: moves and infections are only recorded,
+     * using requestMove and requestInfection, and applied at the end of the step, and placing or
+     * clearing a cell is not allowed. The result of the step does not depend on the order in which
+     * the entities act. Nothing is copied, so that starting a step does not depend on the size of the map.
+     */
+    public synchronized void beginSynchronousStep() {
+        // An entity claims at most one cell
+        if (claimedCells == null || claimedCells.length < store.size()) {
+            claimedCells = new long[store.size()];
+        }
+        if (infectionClaims == null || infectionClaims.length() < store.size()) {
+            infectionClaims = new AtomicIntegerArray(store.size());
+            infectedIds = new int[store.size()];
+        }
+        synchronousStep = true;
+    }
+
+    /**
+     * End a synchronous step: the recorded moves and infections are applied.
+     */
+    public synchronized void endSynchronousStep() {
+        synchronousStep = false;
 
+        // Each claimed location goes to the entity with the lowest priority
+        int count = claimedCellCount.getAndSet(0);
+        for (int i = 0; i < count; i++) {
+            long cell = claimedCells[i];
+            AtomicIntegerArray moveClaims = chunks[chunkOf(cell)].moveClaims;
+            store.moveTo(moveClaims.getAndSet(localOf(cell), 0) - 1, getX(cell), getY(cell));
+        }
+
+        count = infectedCount.getAndSet(0);
+        for (int i = 0; i < count; i++) {
+            int id = infectedIds[i];
+            int source = infectionClaims.getAndSet(id, 0) - 1;
+            store.becomeSick(id, store.getVirus(source), source);
+        }
+    }
+
+    /**
+     * Check if a synchronous step is running
+     * @return true between beginSynchronousStep and endSynchronousStep
+     */
+    public boolean isSynchronousStep() {
+        return synchronousStep;
+    }
+
+    /**
+     * Record that an entity wants to move to a free location during a synchronous step. If several
+     * entities want the same location, the one coming from the lowest location wins, the others
+     * stay where they are. Several threads can record moves at the same time.
+     * @param entity the entity moving
+     * @param location the free location where it wants to go
+     */
+    public void requestMove(LivingEntity entity, Location location) {
+        requestMove(entity.getId(), getCellIndex(location.getX(), location.getY()));
+    }
+
+    /**
+     * Record that an entity wants to move to a free cell during a synchronous step (see requestMove(LivingEntity, Location)).
+     * Nothing is allocated.
+     * @param entity the entity moving
+     * @param cell index of the free cell where it wants to go (see getCellIndex)
+     */
+    public void requestMove(LivingEntity entity, long cell) {
+        requestMove(entity.getId(), cell);
+    }
+
+    /**
+     * Record that an entity, given by its id, wants to move to a free cell during a synchronous step (see
+     * requestMove(LivingEntity, Location)). Nothing is allocated.
+     * @param id the id of the entity moving (see getEntityStore)
+     * @param cell index of the free cell where it wants to go (see getCellIndex)
+     */
+    public void requestMove(int id, long cell) {
+        Chunk chunk = chunks[chunkOf(cell)];
+        AtomicIntegerArray moveClaims = chunk.moveClaims;
+        if (moveClaims == null) moveClaims = allocateMoveClaims(chunk);
+        if (claim(moveClaims, localOf(cell), id)) {
+            claimedCells[claimedCellCount.getAndIncrement()] = cell;
+        }
+    }
+
+    /**
+     * Record that a contagious entity infects another one during a synchronous step. If several
+     * entities infect the same one, the virus of the one located at the lowest location wins.
+     * Several threads can record infections at the same time.
+     * @param source the contagious entity
+     * @param target the entity to infect
+     */
+    public void requestInfection(LivingEntity source, LivingEntity target) {
+        requestInfection(source.getId(), target.getId());
+    }
+
+    /**
+     * Record that a contagious entity infects another one during a synchronous step, both given by their
+     * ids (see requestInfection(LivingEntity, LivingEntity)). Nothing is allocated.
+     * @param sourceId the id of the contagious entity (see getEntityStore)
+     * @param targetId the id of the entity to infect
+     */
+    public void requestInfection(int sourceId, int targetId) {
+        if (claim(infectionClaims, targetId, sourceId)) {
+            infectedIds[infectedCount.getAndIncrement()] = targetId;
+        }
+    }
+
+    /**
+     * Allocate the move claims of a chunk, unless another thread did it first. The claims are kept for
+     * the next steps.
+     */
+    private synchronized AtomicIntegerArray allocateMoveClaims(Chunk chunk) {
+        if (chunk.moveClaims == null) chunk.moveClaims = new AtomicIntegerArray(Chunk.CELLS);
+        return chunk.moveClaims;
+    }
+
+    /**
+     * Record a claim, if the entity has a higher priority than the one holding the claim.
+     * @param claims the claims
+     * @param index the index of the claim
+     * @param id the id of the entity
+     * @return true if it is the first claim recorded at that index during the step
+     */
+    private boolean claim(AtomicIntegerArray claims, int index, int id) {
+        while (true) {
+            int current = claims.get(index);
+            if (current != 0 && priority(current - 1) <= priority(id)) return false;
+            if (claims.compareAndSet(index, current, id + 1)) return current == 0;
+        }
+    }
+
+    /**
+     * Returns the priority of an entity to resolve conflicting requests, ie X * depth + Y for its location
+     * @param id the id of the entity
+     * @return the priority of the entity (the lower, the higher priority)
+     */
+    private long priority(int id) {
+        return (long) store.getX(id) * depth + store.getY(id);
+    }
 }
@@ -5,6 +5,16 @@ package unice.map;
  * Defines the way the neighbourhood of a location of the map is defined
  */
 public enum NeighbourhoodType {
-    FOUR,   // Only locations located on the N,S,E and W  of a specific location are considered
-    HEIGHT  // All locations around a specific location are considered
+    FOUR(new int[]{-1, 1, 0, 0}, new int[]{0, 0, -1, 1}),  // Only locations located on the N,S,E and W  of a specific location are considered
+    HEIGHT(new int[]{-1, -1, -1, 0, 0, 1, 1, 1}, new int[]{-1, 0, 1, -1, 1, -1, 0, 1});  // All locations around a specific location are considered
+
+    // Offsets of the neighbours of a location, in the order of the neighbourhood lists (FOUR: W, E, N, S,
+    // HEIGHT: column by column).
+    final int[] xOffsets;
+    final int[] yOffsets;
+
+    NeighbourhoodType(int[] theXOffsets, int[] theYOffsets) {
+        xOffsets = theXOffsets;
+        yOffsets = theYOffsets;
+    }
 }
@@ -0,0 +1,520 @@
+package unice.map;
+
+import unice.livingEntities.EntityStore;
+import unice.livingEntities.HealthStatusType;
+import unice.livingEntities.Species;
+import unice.virus.Virus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Loïc
+ * A snapshot of a world, saved in a memory-mapped file: the state of each cell of a map (species, health
+ * status, virus, number of steps before the next health status transition and state of the random stream),
+ * so that a world can be saved once populated and reopened later without populating it again.
+ * It is only a save and load format: the simulation does not run from the file, read rebuilds the whole
+ * map and entity store on the heap, so that a world too large for the heap can not be simulated.
+ * The file has the same chunks as the map (see Chunk): a header, one bit per chunk telling if it holds
+ * entities, then one page of 16 bytes per cell for each chunk, at a place only depending on the coordinates
+ * of the chunk. The pages of the empty chunks are never written, so that the file is sparse, and the pages
+ * are mapped in regions of 1 GB the first time they are read, the system loading them on demand.
+ * The cells of a snapshot can also be queried directly in the file, with the same neighbourhood masks as
+ * the map, without reading it.
+ * The species and the viruses are stored by name. The dead entities, having no location, are only stored
+ * as a number by species in the header, with the number of infections of each species. The entities get
+ * new ids when the world is read, so that they do not act in the same order as before it was saved.
+ */
+public class WorldSnapshot implements Closeable {
+    private static final int MAGIC = 0x464C5557;    // "FLUW"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4096;
+    private static final int CELL_BYTES = 16;       // Species + 1, health status, virus + 1, unused, next transition (int), random stream
+    private static final int CHUNK_BYTES = Chunk.CELLS * CELL_BYTES;
+    private static final int REGION_CHUNKS = (1 << 30) / CHUNK_BYTES;
+    private static final HealthStatusType[] HEALTH_STATUSES = HealthStatusType.values();
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private int width;              // Width of the world
+    private int depth;              // Depth of the world
+    private NeighbourhoodType neighbourhoodType;
+    private int chunksY;            // Number of chunks along the Y axis
+    private long chunkTotal;        // Number of chunks of the world, allocated or not
+    private long dataStart;         // Position of the page of the chunk 0
+
+    private MappedByteBuffer header;
+    private MappedByteBuffer presence;      // One bit per chunk, set if the chunk holds entities
+    private MappedByteBuffer[] regions;     // Pages of REGION_CHUNKS chunks, mapped on demand
+
+    private int step;                                       // Step of the saved world
+    private List<String> speciesNames = new ArrayList<>();  // Class names of the species, by index in the file
+    private List<String> virusNames = new ArrayList<>();    // Names of the viruses, by index in the file
+    private Species[] species = new Species[0];             // Species of each index, resolved on demand
+    private int[] speciesInfections = new int[0];           // Infections of the species of each index
+    private int[] speciesDeaths = new int[0];               // Dead entities of the species of each index
+
+    private WorldSnapshot(Path path, String mode) throws IOException {
+        file = new RandomAccessFile(path.toFile(), mode);
+        channel = file.getChannel();
+    }
+
+    /**
+     * Create an empty world snapshot, replacing the file if it exists
+     * @param path the path of the file
+     * @param theWidth Width of the world (X axis)
+     * @param theDepth Depth of the world (Y axis)
+     * @param theNeighbourhoodType Type of neighbourhood of the world
+     * @return the world snapshot, to be closed
+     * @throws IOException if the file can not be created
+     */
+    public static WorldSnapshot create(Path path, int theWidth, int theDepth, NeighbourhoodType theNeighbourhoodType) throws IOException {
+        WorldSnapshot world = new WorldSnapshot(path, "rw");
+        try {
+            world.file.setLength(0);
+            world.setDimensions(theWidth, theDepth, theNeighbourhoodType);
+            world.file.setLength(world.dataStart + world.chunkTotal * CHUNK_BYTES);
+            world.map();
+            world.writeHeader();
+        } catch (IOException | RuntimeException e) {
+            world.close();
+            throw e;
+        }
+        return world;
+    }
+
+    /**
+     * Open an existing world snapshot
+     * @param path the path of the file
+     * @return the world snapshot, to be closed
+     * @throws IOException if the file can not be read, or is not a world snapshot
+     */
+    public static WorldSnapshot open(Path path) throws IOException {
+        WorldSnapshot world = new WorldSnapshot(path, "rw");
+        try {
+            ByteBuffer start = ByteBuffer.allocate(20);
+            world.channel.read(start, 0);
+            start.flip();
+            if (start.remaining() < 20 || start.getInt() != MAGIC || start.getInt() != VERSION) {
+                throw new IOException("Not a world snapshot: " + path);
+            }
+            int theWidth = start.getInt();
+            int theDepth = start.getInt();
+            world.setDimensions(theWidth, theDepth, NeighbourhoodType.values()[start.getInt()]);
+            world.map();
+            world.readHeader();
+        } catch (IOException | RuntimeException e) {
+            world.close();
+            throw e;
+        }
+        return world;
+    }
+
+    private void setDimensions(int theWidth, int theDepth, NeighbourhoodType theNeighbourhoodType) {
+        if (theWidth <= 0 || theDepth <= 0) {
+            throw new IllegalArgumentException("Invalid world size: " + theWidth + "x" + theDepth);
+        }
+        width = theWidth;
+        depth = theDepth;
+        neighbourhoodType = theNeighbourhoodType;
+        chunksY = (depth + Chunk.MASK) >>> Chunk.BITS;
+        chunkTotal = (long) ((width + Chunk.MASK) >>> Chunk.BITS) * chunksY;
+        long presenceBytes = (chunkTotal + 7) >>> 3;
+        if (presenceBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("World too large: " + width + "x" + depth);
+        }
+        // The pages start on a boundary of the system pages
+        dataStart = (HEADER_BYTES + presenceBytes + HEADER_BYTES - 1) / HEADER_BYTES * HEADER_BYTES;
+        regions = new MappedByteBuffer[(int) ((chunkTotal + REGION_CHUNKS - 1) / REGION_CHUNKS)];
+    }
+
+    private void map() throws IOException {
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        presence = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES, (chunkTotal + 7) >>> 3);
+    }
+
+    /**
+     * Return the width of the world
+     * @return the width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Return the depth of the world
+     * @return the depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Return the type of neighbourhood of the world
+     * @return the type of neighbourhood
+     */
+    public NeighbourhoodType getNeighbourhoodType() {
+        return neighbourhoodType;
+    }
+
+    /**
+     * Return the step of the simulation when the world was saved
+     * @return the step
+     */
+    public synchronized int getStep() {
+        return step;
+    }
+
+    /**
+     * Save the entities of a map, replacing the world stored in the file
+     * @param map the map, of the same size as the world
+     * @throws IOException if the file can not be written
+     */
+    public synchronized void write(Map map) throws IOException {
+        checkSize(map);
+        EntityStore store = map.getEntityStore();
+        step = store.getStep();
+        speciesNames.clear();
+        virusNames.clear();
+        species = new Species[0];
+        for (int i = 0; i < presence.capacity(); i++) {
+            presence.put(i, (byte) 0);
+        }
+
+        for (int c = 0; c < map.getChunkCount(); c++) {
+            Chunk chunk = map.getChunk(c);
+            long chunkIndex = getChunkIndex(chunk.x0, chunk.y0);
+            ByteBuffer page = null;
+            int offset = 0;
+            for (int local = 0; local < Chunk.CELLS; local++) {
+                int id = chunk.cells[local] - 1;
+                if (id < 0) {
+                    if (page != null) page.putLong(offset + local * CELL_BYTES, 0);
+                    continue;
+                }
+                if (page == null) {
+                    // First entity of the chunk: the cells before it are empty
+                    page = getRegion(chunkIndex);
+                    offset = getPageOffset(chunkIndex);
+                    for (int i = 0; i < local; i++) {
+                        page.putLong(offset + i * CELL_BYTES, 0);
+                    }
+                    setPresent(chunkIndex);
+                }
+                int cell = offset + local * CELL_BYTES;
+                page.put(cell, (byte) (indexOf(speciesNames, store.getSpecies(id).getEntityClass().getName()) + 1));
+                page.put(cell + 1, (byte) store.getHealthStatus(id).ordinal());
+                Virus virus = store.getVirus(id);
+                page.put(cell + 2, (byte) (virus == null ? 0 : indexOf(virusNames, virus.getName()) + 1));
+                page.put(cell + 3, (byte) 0);
+                int dueStep = store.getDueStep(id);
+                page.putInt(cell + 4, dueStep < 0 ? -1 : dueStep - step);
+                page.putLong(cell + 8, store.getRandomState(id));
+            }
+        }
+
+        // The dead entities and the infections are counted by species in the header
+        for (int i = 0; i < Species.count(); i++) {
+            Species theSpecies = Species.get(i);
+            if (store.countInfections(theSpecies) > 0 || store.count(theSpecies, HealthStatusType.DEAD) > 0) {
+                indexOf(speciesNames, theSpecies.getEntityClass().getName());
+            }
+        }
+        speciesInfections = new int[speciesNames.size()];
+        speciesDeaths = new int[speciesNames.size()];
+        for (int i = 0; i < speciesNames.size(); i++) {
+            speciesInfections[i] = store.countInfections(getSpecies(i));
+            speciesDeaths[i] = store.count(getSpecies(i), HealthStatusType.DEAD);
+        }
+        writeHeader();
+        flush();
+    }
+
+    /**
+     * Replace the entities of a map by the ones of the world. The step of the entity store is set to the
+     * step of the world, and the health status transitions are scheduled as they were. The state of the
+     * entities is restored without reporting anything to the event sink of the store.
+     * @param map the map, of the same size as the world
+     * @param viruses the viruses of the simulation, found by name
+     * @throws IOException if the file can not be read, or refers to an unknown species or virus
+     */
+    public synchronized void read(Map map, Virus... viruses) throws IOException {
+        checkSize(map);
+        Virus[] virusByIndex = new Virus[virusNames.size()];
+        for (int i = 0; i < virusByIndex.length; i++) {
+            for (Virus virus : viruses) {
+                if (virus.getName().equals(virusNames.get(i))) virusByIndex[i] = virus;
+            }
+            if (virusByIndex[i] == null) throw new IOException("Unknown virus: " + virusNames.get(i));
+        }
+        Species[] speciesByIndex = new Species[speciesNames.size()];
+        for (int i = 0; i < speciesByIndex.length; i++) {
+            speciesByIndex[i] = getSpecies(i);
+        }
+
+        map.clear();
+        EntityStore store = map.getEntityStore();
+        store.advanceTo(step);
+        for (long chunkIndex = 0; chunkIndex < chunkTotal; chunkIndex++) {
+            if (!isPresent(chunkIndex)) continue;
+            ByteBuffer page = getRegion(chunkIndex);
+            int offset = getPageOffset(chunkIndex);
+            int x0 = (int) (chunkIndex / chunksY) << Chunk.BITS;
+            int y0 = (int) (chunkIndex % chunksY) << Chunk.BITS;
+            for (int local = 0; local < Chunk.CELLS; local++) {
+                int cell = offset + local * CELL_BYTES;
+                int speciesIndex = page.get(cell) & 0xff;
+                if (speciesIndex == 0) continue;
+                int id = store.add(speciesByIndex[speciesIndex - 1]);
+                int virusIndex = page.get(cell + 2) & 0xff;
+                store.setVirus(id, virusIndex == 0 ? null : virusByIndex[virusIndex - 1]);
+                store.restoreHealthStatus(id, HEALTH_STATUSES[page.get(cell + 1)]);
+                store.restoreRandomState(id, page.getLong(cell + 8));
+                int period = page.getInt(cell + 4);
+                if (period >= 0) store.scheduleTransition(id, period);
+                // Placed last, so that the entity is active if needed
+                store.moveTo(id, x0 + (local >>> Chunk.BITS), y0 + (local & Chunk.MASK));
+            }
+        }
+        for (int i = 0; i < speciesByIndex.length; i++) {
+            for (int dead = 0; dead < speciesDeaths[i]; dead++) {
+                store.restoreHealthStatus(store.add(speciesByIndex[i]), HealthStatusType.DEAD);
+            }
+            store.restoreInfections(speciesByIndex[i], speciesInfections[i]);
+        }
+    }
+
+    /**
+     * Check if a location of the world holds an entity
+     * @param x Location X
+     * @param y Location Y
+     * @return true if the location is inside the world and holds an entity
+     */
+    public boolean isOccupied(int x, int y) {
+        return getCellState(x, y) != 0;
+    }
+
+    /**
+     * Return the species of the entity at a location of the world
+     * @param x Location X
+     * @param y Location Y
+     * @return the species, or null if the location is outside the world or holds no entity
+     * @throws IOException if the species is not known
+     */
+    public Species getSpecies(int x, int y) throws IOException {
+        int speciesIndex = getCellState(x, y) & 0xff;
+        return speciesIndex == 0 ? null : getSpecies(speciesIndex - 1);
+    }
+
+    /**
+     * Return the health status of the entity at a location of the world
+     * @param x Location X
+     * @param y Location Y
+     * @return the health status, or null if the location is outside the world or holds no entity
+     */
+    public HealthStatusType getHealthStatus(int x, int y) {
+        int state = getCellState(x, y);
+        return state == 0 ? null : HEALTH_STATUSES[state >>> 8 & 0xff];
+    }
+
+    /**
+     * Return the free neighbours of a location as a mask: the bit i is set if the neighbour i (in the order
+     * of Map.getNeighbourCells) is inside the world and free
+     * @param x Location X
+     * @param y Location Y
+     * @return the mask of the free neighbours
+     */
+    public int getFreeNeighbourMask(int x, int y) {
+        int mask = 0;
+        for (int i = 0; i < neighbourhoodType.xOffsets.length; i++) {
+            int neighbourX = x + neighbourhoodType.xOffsets[i];
+            int neighbourY = y + neighbourhoodType.yOffsets[i];
+            if (isInside(neighbourX, neighbourY) && getCellState(neighbourX, neighbourY) == 0) mask |= 1 << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Return the neighbours of a location holding an entity of a species group as a mask: the bit i is set
+     * if the neighbour i (in the order of Map.getNeighbourCells) holds an entity of the group
+     * @param x Location X
+     * @param y Location Y
+     * @param group the class of the species group (ex: Human, Bird, Pig)
+     * @return the mask of the neighbours of the species group
+     * @throws IOException if a species is not known
+     */
+    public int getSpeciesNeighbourMask(int x, int y, Class<?> group) throws IOException {
+        int mask = 0;
+        for (int i = 0; i < neighbourhoodType.xOffsets.length; i++) {
+            Species neighbour = getSpecies(x + neighbourhoodType.xOffsets[i], y + neighbourhoodType.yOffsets[i]);
+            if (neighbour != null && neighbour.isA(group)) mask |= 1 << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Write the changes of the mapped pages to the disk
+     */
+    public synchronized void flush() {
+        header.force();
+        presence.force();
+        for (MappedByteBuffer region : regions) {
+            if (region != null) region.force();
+        }
+    }
+
+    /**
+     * Close the file. The mapped pages are released once they are no longer referenced.
+     * @throws IOException if the file can not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (header != null) flush();
+        header = null;
+        presence = null;
+        regions = new MappedByteBuffer[0];
+        file.close();
+    }
+
+    private boolean isInside(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < depth;
+    }
+
+    private void checkSize(Map map) {
+        if (map.getWidth() != width || map.getDepth() != depth) {
+            throw new IllegalArgumentException("The map is " + map.getWidth() + "x" + map.getDepth()
+                    + ", the world " + width + "x" + depth);
+        }
+    }
+
+    /**
+     * Returns the first 4 bytes of a cell (species + 1 in the lowest byte, then health status and virus + 1),
+     * 0 if the cell is outside the world or empty
+     */
+    private int getCellState(int x, int y) {
+        if (!isInside(x, y)) return 0;
+        long chunkIndex = getChunkIndex(x, y);
+        if (!isPresent(chunkIndex)) return 0;
+        int cell = getPageOffset(chunkIndex) + ((x & Chunk.MASK) << Chunk.BITS | (y & Chunk.MASK)) * CELL_BYTES;
+        ByteBuffer page = getRegion(chunkIndex);
+        return (page.get(cell) & 0xff) | (page.get(cell + 1) & 0xff) << 8 | (page.get(cell + 2) & 0xff) << 16;
+    }
+
+    private long getChunkIndex(int x, int y) {
+        return (long) (x >>> Chunk.BITS) * chunksY + (y >>> Chunk.BITS);
+    }
+
+    private boolean isPresent(long chunkIndex) {
+        return (presence.get((int) (chunkIndex >>> 3)) >>> (chunkIndex & 7) & 1) != 0;
+    }
+
+    private void setPresent(long chunkIndex) {
+        int i = (int) (chunkIndex >>> 3);
+        presence.put(i, (byte) (presence.get(i) | 1 << (chunkIndex & 7)));
+    }
+
+    private static int getPageOffset(long chunkIndex) {
+        return (int) (chunkIndex % REGION_CHUNKS) * CHUNK_BYTES;
+    }
+
+    /**
+     * Returns the region holding the page of a chunk, and maps it if needed
+     */
+    private synchronized MappedByteBuffer getRegion(long chunkIndex) {
+        int region = (int) (chunkIndex / REGION_CHUNKS);
+        if (regions[region] == null) {
+            long start = dataStart + (long) region * REGION_CHUNKS * CHUNK_BYTES;
+            long size = Math.min((long) REGION_CHUNKS, chunkTotal - (long) region * REGION_CHUNKS) * CHUNK_BYTES;
+            try {
+                regions[region] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not map the world snapshot", e);
+            }
+        }
+        return regions[region];
+    }
+
+    /**
+     * Returns the species of an index of the file, loading its class if needed
+     */
+    private synchronized Species getSpecies(int speciesIndex) throws IOException {
+        if (species.length < speciesNames.size()) {
+            Species[] resolved = new Species[speciesNames.size()];
+            System.arraycopy(species, 0, resolved, 0, species.length);
+            species = resolved;
+        }
+        if (species[speciesIndex] == null) {
+            try {
+                species[speciesIndex] = Species.forClassName(speciesNames.get(speciesIndex));
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unknown species: " + speciesNames.get(speciesIndex), e);
+            }
+        }
+        return species[speciesIndex];
+    }
+
+    private static int indexOf(List<String> names, String name) {
+        int index = names.indexOf(name);
+        if (index >= 0) return index;
+        if (names.size() == 255) throw new IllegalStateException("Too many names in the world snapshot: " + name);
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer buffer = header.duplicate();
+        buffer.clear();
+        try {
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(depth)
+                    .putInt(neighbourhoodType.ordinal()).putInt(step);
+            writeNames(buffer, speciesNames);
+            writeNames(buffer, virusNames);
+            for (int i = 0; i < speciesNames.size(); i++) {
+                buffer.putInt(speciesInfections[i]).putInt(speciesDeaths[i]);
+            }
+        } catch (BufferOverflowException e) {
+            throw new IOException("Too many names in the world snapshot header", e);
+        }
+    }
+
+    private void readHeader() {
+        ByteBuffer buffer = header.duplicate();
+        buffer.position(20);
+        step = buffer.getInt();
+        readNames(buffer, speciesNames);
+        readNames(buffer, virusNames);
+        speciesInfections = new int[speciesNames.size()];
+        speciesDeaths = new int[speciesNames.size()];
+        for (int i = 0; i < speciesNames.size(); i++) {
+            speciesInfections[i] = buffer.getInt();
+            speciesDeaths[i] = buffer.getInt();
+        }
+    }
+
+    private static void writeNames(ByteBuffer buffer, List<String> names) {
+        buffer.putInt(names.size());
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+    }
+
+    private static void readNames(ByteBuffer buffer, List<String> names) {
+        names.clear();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[buffer.getShort()];
+            buffer.get(bytes);
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package unice.random;
+
+/**
+ * A fast, non synchronized, stream of random numbers (SplitMix64 generator).
+ * The state of the stream is a simple counter, so that a stream can be derived from a seed
+ * and a key (for example the id of a living entity), and gives the same numbers whatever
+ * the thread drawing them.
+ */
+public class RandomStream {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;     // Counter of the stream, incremented by GOLDEN_GAMMA for each number
+
+    /**
+     * Constructor
+     * @param theSeed the seed of the stream
+     */
+    public RandomStream(long theSeed) {
+        state = theSeed;
+    }
+
+    /**
+     * Returns the seed of an independent stream, derived from a seed and a key
+     * @param seed the seed (ex: the seed of the simulation)
+     * @param key the key (ex: the id of a living entity)
+     * @return the seed of the stream for that key
+     */
+    public static long key(long seed, long key) {
+        return mix(seed + mix(key + GOLDEN_GAMMA));
+    }
+
+    /**
+     * Mixes the bits of a long value (finalizer of SplitMix64)
+     * @param z the value to mix
+     * @return the mixed value
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns the state following the given one. Streams whose state is stored elsewhere (for
+     * example in an array) can use this method with mix, instead of allocating a RandomStream.
+     * @param state the current state of a stream
+     * @return the next state of the stream
+     */
+    public static long nextState(long state) {
+        return state + GOLDEN_GAMMA;
+    }
+
+    /**
+     * Converts a random long into a random double between 0 (included) and 1 (excluded)
+     * @param random a random long
+     * @return a random double
+     */
+    public static double toDouble(long random) {
+        return (random >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Converts a random long into a random int between 0 (included) and bound (excluded)
+     * @param random a random long
+     * @param bound the upper bound, must be greater than zero
+     * @return a random int
+     */
+    public static int toInt(long random, int bound) {
+        return (int) (((random >>> 32) * bound) >>> 32);
+    }
+
+    /**
+     * Converts a probability into an integer threshold, to be compared with random longs using isBelow.
+     * Probability checks can then be done without any floating point operation.
+     * @param probability the probability, between 0 and 1
+     * @return the threshold
+     */
+    public static long toThreshold(double probability) {
+        return (long) (probability * 0x1.0p53);
+    }
+
+    /**
+     * Check if a random long is below a threshold, ie happens with the probability of the threshold
+     * @param random a random long
+     * @param threshold a threshold given by toThreshold
+     * @return true with the probability of the threshold
+     */
+    public static boolean isBelow(long random, long threshold) {
+        return (random >>> 11) < threshold;
+    }
+
+    /**
+     * Returns the next random long
+     * @return a random long
+     */
+    public long nextLong() {
+        state = nextState(state);
+        return mix(state);
+    }
+
+    /**
+     * Returns the next random double between 0 (included) and 1 (excluded)
+     * @return a random double
+     */
+    public double nextDouble() {
+        return toDouble(nextLong());
+    }
+
+    /**
+     * Returns the next random int between 0 (included) and bound (excluded)
+     * @param bound the upper bound, must be greater than zero
+     * @return a random int
+     */
+    public int nextInt(int bound) {
+        return toInt(nextLong(), bound);
+    }
+
+    /**
+     * Draws a random event of the given probability
+     * @param threshold the probability of the event, given by toThreshold
+     * @return true with the probability of the threshold
+     */
+    public boolean nextBelow(long threshold) {
+        return isBelow(nextLong(), threshold);
+    }
+
+    /**
+     * Returns the current state of the stream
+     * @return the state of the stream
+     */
+    public long getState() {
+        return state;
+    }
+
+    /**
+     * Defines the state of the stream, to continue a stream from a known state
+     * @param theState the state of the stream
+     */
+    public void setState(long theState) {
+        state = theState;
+    }
+}
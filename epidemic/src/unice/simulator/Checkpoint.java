@@ -0,0 +1,138 @@
+package unice.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A binary checkpoint of the whole state of a simulation: the step and the seed, the map with the
+ * empty cells run-length encoded, every living entity (health status, step of its next transition,
+ * virus, location, state of its random stream), the set of the active entities and the scheduled
+ * transitions. Restoring a checkpoint gives exactly the same continuation as the simulation it was
+ * captured from, as long as the scenario is the same.
+ * The state is captured in memory between two steps, which only copies it, and compressed when it is
+ * written, possibly on another thread (see CheckpointWriter). The file holds a small header followed by
+ * the state compressed by a Deflater.
+ *
+ * @author Romain Chaudron
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x464C5543;    // "FLUC"
+    private static final int VERSION = 2;
+
+    // The step of the simulation when the checkpoint was captured.
+    private int step;
+    // The uncompressed state of the simulation.
+    private byte[] state;
+
+    private Checkpoint(int theStep, byte[] theState) {
+        step = theStep;
+        state = theState;
+    }
+
+    /**
+     * Capture the state of a simulation, between two steps.
+     *
+     * @param simulator
+     *            The simulation.
+     * @return the checkpoint
+     */
+    public static Checkpoint capture(Simulator simulator) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            simulator.writeState(out);
+        } catch (IOException e) {
+            // Not thrown by a stream in memory
+            throw new UncheckedIOException(e);
+        }
+        return new Checkpoint(simulator.getStep(), bytes.toByteArray());
+    }
+
+    /**
+     * Read a checkpoint written by write.
+     *
+     * @param path
+     *            The path of the checkpoint file.
+     * @return the checkpoint
+     * @throws IOException
+     *            If the file can not be read, or is not a checkpoint.
+     */
+    public static Checkpoint read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint: " + path);
+            }
+            int theStep = in.readInt();
+            byte[] theState = new byte[in.readInt()];
+            new DataInputStream(new InflaterInputStream(in)).readFully(theState);
+            return new Checkpoint(theStep, theState);
+        }
+    }
+
+    /**
+     * Write the checkpoint. The file is first written under a temporary name, then renamed, so that a
+     * crash while writing leaves the previous checkpoint intact.
+     *
+     * @param path
+     *            The path of the checkpoint file, replaced if it exists.
+     * @throws IOException
+     *            If the file can not be written.
+     */
+    public void write(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(step);
+            out.writeInt(state.length);
+            DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater, 1 << 16);
+            compressed.write(state);
+            compressed.finish();
+        } finally {
+            deflater.end();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replace the state of a simulation by the one of the checkpoint.
+     *
+     * @param simulator
+     *            The simulation, using the scenario of the simulation captured.
+     * @throws IOException
+     *            If the checkpoint refers to an unknown species or virus.
+     */
+    public void restore(Simulator simulator) throws IOException {
+        simulator.readState(new DataInputStream(new ByteArrayInputStream(state)));
+    }
+
+    /**
+     * Return the step of the simulation when the checkpoint was captured.
+     *
+     * @return the step
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * Return the size of the uncompressed state.
+     *
+     * @return the number of bytes of the state
+     */
+    public int getSize() {
+        return state.length;
+    }
+}
@@ -0,0 +1,75 @@
+package unice.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes checkpoints to a file on a background thread, so that the steps go on while a checkpoint
+ * is compressed and written. At most one checkpoint waits for the one being written: a newer
+ * checkpoint replaces it, so that a slow disk never stalls the simulation.
+ *
+ * @author Romain Chaudron
+ */
+public class CheckpointWriter implements Closeable {
+    // The checkpoint file.
+    private Path path;
+    // The thread writing the checkpoints.
+    private ThreadPoolExecutor executor;
+    // The last failure of the writing thread, thrown by close.
+    private volatile IOException failure;
+
+    /**
+     * Create a writer replacing the given file at each checkpoint.
+     *
+     * @param thePath
+     *            The path of the checkpoint file.
+     */
+    public CheckpointWriter(Path thePath) {
+        path = thePath;
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                task -> {
+                    Thread thread = new Thread(task, "checkpoint-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Capture the state of a simulation, and write it in the background.
+     *
+     * @param simulator
+     *            The simulation, between two steps.
+     */
+    public void checkpoint(Simulator simulator) {
+        final Checkpoint checkpoint = Checkpoint.capture(simulator);
+        executor.execute(() -> {
+            try {
+                checkpoint.write(path);
+            } catch (IOException e) {
+                failure = e;
+            }
+        });
+    }
+
+    /**
+     * Wait for the checkpoints waiting to be written, and stop the writing thread.
+     *
+     * @throws IOException
+     *            If a checkpoint could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+    }
+}
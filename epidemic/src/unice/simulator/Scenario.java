@@ -0,0 +1,178 @@
+package unice.simulator;
+
+import unice.random.RandomStream;
+import unice.virus.H1N1Virus;
+import unice.virus.H5N1Virus;
+import unice.virus.Virus;
+
+import java.util.Arrays;
+
+/**
+ * The parameters of a simulation: the probabilities used to populate the map, and the
+ * periods and rates of the viruses. A scenario is immutable: the viruses and the thresholds
+ * are computed once, and the scenario can be shared by any number of simulations running
+ * at the same time. Use with() to get a scenario differing by one parameter.
+ *
+ * @author Romain Chaudron
+ */
+public class Scenario {
+    /**
+     * The parameters of a scenario, with their default value.
+     */
+    public enum Parameter {
+        // The probability that a living entity will be created in any given map position.
+        // If we want to have no empty space, the person creation probability must be 1.
+        PIG_CREATION_PROBABILITY(0.15),
+        CHICKEN_CREATION_PROBABILITY(0.06),
+        DUCK_CREATION_PROBABILITY(0.04),
+        PERSON_CREATION_PROBABILITY(0.2),
+        // The probability that a created animal is sick.
+        PIG_INITIALINFECTION_PROBABILITY(0.5),
+        CHICKEN_INITIALINFECTION_PROBABILITY(0.5),
+        DUCK_INITIALINFECTION_PROBABILITY(0.5),
+        // The periods (in steps) and the rates of the H1N1 virus, by default the ones of H1N1Virus.
+        H1N1_INCUBATION_PERIOD(H1N1Virus.INCUBATION_PERIOD),
+        H1N1_CONTAGIOUS_PERIOD(H1N1Virus.CONTAGIOUS_PERIOD),
+        H1N1_RECOVERY_PERIOD(H1N1Virus.RECOVERY_PERIOD),
+        H1N1_INFECTION_RATE(H1N1Virus.INFECTION_RATE),
+        H1N1_MORTALITY_RATE(H1N1Virus.MORTALITY_RATE),
+        // The periods (in steps) and the rates of the H5N1 virus, by default the ones of H5N1Virus.
+        H5N1_INCUBATION_PERIOD(H5N1Virus.INCUBATION_PERIOD),
+        H5N1_CONTAGIOUS_PERIOD(H5N1Virus.CONTAGIOUS_PERIOD),
+        H5N1_RECOVERY_PERIOD(H5N1Virus.RECOVERY_PERIOD),
+        H5N1_INFECTION_RATE(H5N1Virus.INFECTION_RATE),
+        H5N1_MORTALITY_RATE(H5N1Virus.MORTALITY_RATE);
+
+        private final double defaultValue;
+
+        Parameter(double theDefaultValue) {
+            defaultValue = theDefaultValue;
+        }
+
+        /**
+         * @return The default value of the parameter.
+         */
+        public double getDefaultValue() {
+            return defaultValue;
+        }
+    }
+
+    // The scenario using the default value of each parameter.
+    public static final Scenario DEFAULT = new Scenario(defaultValues());
+
+    private final double[] values;      // Values by parameter ordinal
+    private final long[] thresholds;    // Values as thresholds for random longs (see RandomStream.toThreshold)
+    private final Virus h1n1;
+    private final Virus h5n1;
+
+    private Scenario(double[] theValues) {
+        values = theValues;
+        thresholds = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            thresholds[i] = RandomStream.toThreshold(Math.min(1, Math.max(0, values[i])));
+        }
+        h1n1 = new H1N1Virus().withParameters(
+                getPeriod(Parameter.H1N1_INCUBATION_PERIOD),
+                getPeriod(Parameter.H1N1_CONTAGIOUS_PERIOD),
+                getPeriod(Parameter.H1N1_RECOVERY_PERIOD),
+                get(Parameter.H1N1_INFECTION_RATE),
+                get(Parameter.H1N1_MORTALITY_RATE));
+        h5n1 = new H5N1Virus().withParameters(
+                getPeriod(Parameter.H5N1_INCUBATION_PERIOD),
+                getPeriod(Parameter.H5N1_CONTAGIOUS_PERIOD),
+                getPeriod(Parameter.H5N1_RECOVERY_PERIOD),
+                get(Parameter.H5N1_INFECTION_RATE),
+                get(Parameter.H5N1_MORTALITY_RATE));
+    }
+
+    private static double[] defaultValues() {
+        Parameter[] parameters = Parameter.values();
+        double[] defaults = new double[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            defaults[i] = parameters[i].getDefaultValue();
+        }
+        return defaults;
+    }
+
+    /**
+     * Return a scenario with the same parameters as this one, except one.
+     *
+     * @param parameter
+     *            The parameter to change.
+     * @param value
+     *            The new value of the parameter.
+     * @return the new scenario, or this one if the value does not change
+     */
+    public Scenario with(Parameter parameter, double value) {
+        if (values[parameter.ordinal()] == value) return this;
+        double[] newValues = Arrays.copyOf(values, values.length);
+        newValues[parameter.ordinal()] = value;
+        return new Scenario(newValues);
+    }
+
+    /**
+     * Return a scenario with the same parameters as this one, except some.
+     *
+     * @param parameters
+     *            The parameters to change.
+     * @param newValues
+     *            The new values of the parameters, in the same order.
+     * @return the new scenario
+     */
+    public Scenario with(Parameter[] parameters, double[] newValues) {
+        double[] copy = Arrays.copyOf(values, values.length);
+        for (int i = 0; i < parameters.length; i++) {
+            copy[parameters[i].ordinal()] = newValues[i];
+        }
+        return new Scenario(copy);
+    }
+
+    /**
+     * Return the value of a parameter
+     * @param parameter the parameter
+     * @return the value of the parameter
+     */
+    public double get(Parameter parameter) {
+        return values[parameter.ordinal()];
+    }
+
+    /**
+     * Return a probability as a threshold, to be compared with a random long using RandomStream.isBelow
+     * @param parameter a probability parameter
+     * @return the threshold of the probability
+     */
+    public long getThreshold(Parameter parameter) {
+        return thresholds[parameter.ordinal()];
+    }
+
+    private int getPeriod(Parameter parameter) {
+        return (int) Math.round(get(parameter));
+    }
+
+    /**
+     * @return The H1N1 virus of the scenario, shared by all the simulations of the scenario.
+     */
+    public Virus getH1N1Virus() {
+        return h1n1;
+    }
+
+    /**
+     * @return The H5N1 virus of the scenario, shared by all the simulations of the scenario.
+     */
+    public Virus getH5N1Virus() {
+        return h5n1;
+    }
+
+    /**
+     * Returns a String representation of the scenario
+     * @return the value of each parameter
+     */
+    public String toString() {
+        StringBuilder buffer = new StringBuilder("Scenario[");
+        for (Parameter parameter : Parameter.values()) {
+            if (parameter.ordinal() > 0) buffer.append(", ");
+            buffer.append(parameter).append('=').append(get(parameter));
+        }
+        return buffer.append(']').toString();
+    }
+}
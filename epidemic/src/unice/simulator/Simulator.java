@@ -3,17 +3,21 @@ package unice.simulator;
 import unice.display.GraphView;
 import unice.display.GridView;
 import unice.display.SimulatorView;
+import unice.events.EventSink;
 import unice.livingEntities.*;
-import unice.map.Location;
 import unice.map.Map;
 import unice.map.NeighbourhoodType;
-import unice.virus.H1N1Virus;
-import unice.virus.H5N1Virus;
+import unice.map.WorldSnapshot;
+import unice.random.RandomStream;
+import unice.virus.Virus;
 
 import java.awt.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 
 /**
  * A simple epidemic simulator, based on a rectangular map containing
@@ -29,29 +33,35 @@ public class Simulator {
     private static final int DEFAULT_WIDTH = 50;
     // The default depth of the map.
     private static final int DEFAULT_DEPTH = 50;
-    // The probability that a chicken will be created in any given map position.
-    private static final double CHICKEN_CREATION_PROBABILITY = 0.06;
-    // The probability that a duck will be created in any given map position.
-    private static final double DUCK_CREATION_PROBABILITY = 0.04;
-    // The probability that a pig will be created in any given map position.
-    private static final double PIG_CREATION_PROBABILITY = 0.15;
-    // The probability that a person will be created in any given map position.
-    // If we want to have no empty space, we must put 1
-    private static final double PERSON_CREATION_PROBABILITY = 0.2;
-
-    private static final double PIG_INITIALINFECTION_PROBABILITY = 0.5;
-    private static final double DUCK_INITIALINFECTION_PROBABILITY = 0.5;
-    private static final double CHICKEN_INITIALINFECTION_PROBABILITY = 0.5;
-
-    // List of living entities in the map.
-    private List<LivingEntity> livingEntities;
+    // The number of steps between two sorts of the active living entities by location.
+    private static final int SORT_INTERVAL = 16;
+
+    // Ids of the living entities acting during the current step.
+    private int[] activeIds = new int[0];
     // The current state of the map.
     private Map map;
     // The current step of the simulation.
     private int step;
-    // The graphical views of the simulation.
+    // The graphical views of the simulation (empty when running headless).
     private List<SimulatorView> views;
 
+    // Whether the living entities act on a snapshot of the map taken at the beginning of each step.
+    private boolean synchronous;
+    // The stepper running the synchronous steps on several threads, or null for a single thread.
+    private TileStepper tileStepper;
+    // The seed of all the random numbers of the simulation.
+    private long seed;
+    // The creation probabilities and the viruses (see Scenario).
+    private Scenario scenario;
+
+    // The receiver of the infections and health status transitions, or null for none.
+    private EventSink eventSink;
+    // The writer of the periodic checkpoints, or null for none.
+    private CheckpointWriter checkpointWriter;
+    // The number of steps between two checkpoints.
+    private int checkpointInterval;
+
+    // The grid view giving the simulation speed, or null when running headless.
     private GridView gV;
     /**
      * Construct a simulation field with default size.
@@ -61,7 +71,8 @@ public class Simulator {
     }
 
     /**
-     * Create a simulation field with the given size.
+     * Create a simulation field with the given size, displayed by a grid view
+     * and a graph view.
      * 
      * @param depth
      *            Depth of the field. Must be greater than zero.
@@ -69,19 +80,9 @@ public class Simulator {
      *            Width of the field. Must be greater than zero.
      */
     public Simulator(int depth, int width, NeighbourhoodType theNeighbourhoodType) {
-        if (width <= 0 || depth <= 0) {
-            System.out.println("The dimensions must be greater than zero.");
-            System.out.println("Using default values.");
-            depth = DEFAULT_DEPTH;
-            width = DEFAULT_WIDTH;
-        }
-
-        livingEntities = new ArrayList<>();
-        map = new Map(depth, width,theNeighbourhoodType);
-
-        views = new ArrayList<>();
+        this(depth, width, theNeighbourhoodType, null);
 
-        SimulatorView view = new GridView(depth, width);
+        SimulatorView view = new GridView(map.getDepth(), map.getWidth());
         view.setColor(Person.class, Color.ORANGE);
         view.setColor(Pig.class, Color.PINK);
         view.setColor(Chicken.class, Color.BLUE);
@@ -95,12 +96,86 @@ public class Simulator {
         view.setColor(Duck.class, Color.BLACK);
         views.add(view);
 
-        // Setup a valid starting point.
-        reset();
+        // Show the starting point on the new views.
+        for (SimulatorView simulatorView : views) {
+            simulatorView.reset();
+        }
+        updateViews();
 
         gV  = (GridView)views.get(0);
     }
 
+    /**
+     * Create a simulation field with the given size and the given views. The list of
+     * views may be null or empty: the simulation then runs headless, without any
+     * Swing window and without waiting between two steps.
+     * 
+     * @param depth
+     *            Depth of the field. Must be greater than zero.
+     * @param width
+     *            Width of the field. Must be greater than zero.
+     * @param theViews
+     *            The views to update after each step, or null for none.
+     */
+    public Simulator(int depth, int width, NeighbourhoodType theNeighbourhoodType, List<SimulatorView> theViews) {
+        this(depth, width, theNeighbourhoodType, theViews, System.nanoTime());
+    }
+
+    /**
+     * Create a simulation field with the given size, the given views and the
+     * given seed. All the random numbers of the simulation (population, moves,
+     * infections, deaths) are derived from that seed, so that the same seed
+     * always gives the same run.
+     * 
+     * @param depth
+     *            Depth of the field. Must be greater than zero.
+     * @param width
+     *            Width of the field. Must be greater than zero.
+     * @param theViews
+     *            The views to update after each step, or null for none.
+     * @param theSeed
+     *            The seed of the random numbers.
+     */
+    public Simulator(int depth, int width, NeighbourhoodType theNeighbourhoodType, List<SimulatorView> theViews, long theSeed) {
+        this(depth, width, theNeighbourhoodType, theViews, theSeed, Scenario.DEFAULT);
+    }
+
+    /**
+     * Create a simulation field with the given size, the given views, the
+     * given seed and the given scenario.
+     * 
+     * @param depth
+     *            Depth of the field. Must be greater than zero.
+     * @param width
+     *            Width of the field. Must be greater than zero.
+     * @param theViews
+     *            The views to update after each step, or null for none.
+     * @param theSeed
+     *            The seed of the random numbers.
+     * @param theScenario
+     *            The creation probabilities and the viruses of the simulation.
+     */
+    public Simulator(int depth, int width, NeighbourhoodType theNeighbourhoodType, List<SimulatorView> theViews, long theSeed, Scenario theScenario) {
+        seed = theSeed;
+        scenario = theScenario;
+        if (width <= 0 || depth <= 0) {
+            System.out.println("The dimensions must be greater than zero.");
+            System.out.println("Using default values.");
+            depth = DEFAULT_DEPTH;
+            width = DEFAULT_WIDTH;
+        }
+
+        map = new Map(width, depth, theNeighbourhoodType);
+
+        views = new ArrayList<>();
+        if (theViews != null) {
+            views.addAll(theViews);
+        }
+
+        // Setup a valid starting point.
+        reset();
+    }
+
     /**
      * Run the simulation from its current state for a reasonably long period,
      * (4000 steps).
@@ -113,38 +188,227 @@ public class Simulator {
     /**
      * Run the simulation from its current state for the given number of steps.
      * Stop before the given number of steps if it ceases to be viable.
+     * The steps where nothing can happen (no entity is active, and no health
+     * status transition is due) are skipped.
      * 
      * @param numSteps
      *            The number of steps to run for.
      */
     public void simulate(int numSteps) throws InterruptedException{
-        for (int step = 1; step <= numSteps && views.get(0).isViable(map); step++) {
+        int lastStep = step + numSteps;
+        while (step < lastStep && isViable()) {
             speed();
-            simulateOneStep();
+            advance(lastStep);
         }
     }
 
     /**
-     * Run the simulation from its current state for a single step. Iterate over
-     * the whole field updating the state of each fox and rabbit.
+     * Run the simulation until something happens: skip the idle steps, without
+     * going beyond the given step, then run a single step. The state of the
+     * simulation during the skipped steps is the same as before them.
+     * 
+     * @param lastStep
+     *            The last step to run.
+     */
+    public void advance(int lastStep) {
+        skipIdleSteps(lastStep);
+        simulateOneStep();
+    }
+
+    /**
+     * When no entity is active, nothing happens until the next health status
+     * transition: jump to the step before it, without going beyond the given step
+     * nor beyond the next checkpoint step, so that its checkpoint is written.
+     * 
+     * @param lastStep
+     *            The last step to run.
+     */
+    private void skipIdleSteps(int lastStep) {
+        EntityStore store = map.getEntityStore();
+        if (store.getActiveCount() > 0) return;
+
+        if (checkpointWriter != null) {
+            lastStep = Math.min(lastStep, (step / checkpointInterval + 1) * checkpointInterval);
+        }
+        int nextTransitionStep = store.getNextTransitionStep();
+        if (nextTransitionStep < 0 || nextTransitionStep > lastStep) {
+            nextTransitionStep = lastStep;
+        }
+        step = Math.max(step, nextTransitionStep - 1);
+    }
+
+    /**
+     * Run the simulation from its current state for a single step. Only the
+     * active living entities act (infected ones, and the ones moving), so that
+     * the cost of a step depends on the size of the outbreak rather than on the
+     * size of the population. An entity becoming active during a step only acts
+     * from the next step. The health status transitions due at this step are
+     * fired before.
      */
     public void simulateOneStep() {
         step++;
+        map.getEntityStore().advanceTo(step);
+        // Keep the entities acting in the order of their cells, as the moves mix them up
+        if (step % SORT_INTERVAL == 0) map.getEntityStore().sortActive();
+
+        if (tileStepper != null) {
+            // Let all LivingEntities act, tile by tile, on several threads.
+            tileStepper.step(map);
+        } else {
+            if (synchronous) map.beginSynchronousStep();
+
+            // Let all active LivingEntities act. The set is copied, as entities
+            // join or leave it while acting.
+            EntityStore store = map.getEntityStore();
+            if (activeIds.length < store.getActiveCount()) {
+                activeIds = new int[store.getActiveCount() * 2];
+            }
+            int activeCount = store.copyActive(activeIds);
+            for (int i = 0; i < activeCount; i++) {
+                store.act(activeIds[i]);
+            }
 
-        // Let all LivingEntities act.
-        for (LivingEntity livingEntity:livingEntities) {
-            livingEntity.act();
+            if (synchronous) map.endSynchronousStep();
         }
 
+        if (checkpointWriter != null && step % checkpointInterval == 0) {
+            checkpointWriter.checkpoint(this);
+        }
         updateViews();
     }
 
+    /**
+     * Determine whether the simulation should continue to run. This does not
+     * rely on any view, so that it also works when running headless.
+     * 
+     * @return true If there is more than one species alive.
+     */
+    public boolean isViable() {
+        return map.getEntityStore().getLivingSpeciesCount() > 1;
+    }
+
+    /**
+     * Get the number of living individuals of a given class.
+     * 
+     * @param livingEntityClass
+     *            The class of living entity to count.
+     * @return The number of living entities of this class.
+     */
+    public int getPopulationCount(Class<?> livingEntityClass) {
+        return map.getEntityStore().countLiving(Species.of(livingEntityClass));
+    }
+
+    /**
+     * Choose how the living entities act during a step. In synchronous mode, all the entities see
+     * the map as it was at the beginning of the step, and their moves and infections are applied
+     * at the end of the step, so that the result does not depend on the order of the entities.
+     * Otherwise, the entities act one after the other on the map.
+     * 
+     * @param theSynchronous
+     *            true to use synchronous steps
+     */
+    public void setSynchronous(boolean theSynchronous) {
+        synchronous = theSynchronous;
+    }
+
+    /**
+     * Check if the steps are synchronous.
+     * 
+     * @return true if the steps are synchronous
+     */
+    public boolean isSynchronous() {
+        return synchronous || tileStepper != null;
+    }
+
+    /**
+     * Define the number of threads used to run a step. With more than one thread, the map is cut
+     * into tiles processed in parallel, and the steps are always synchronous. For a given seed,
+     * the result is the same whatever the number of threads.
+     * 
+     * @param threads
+     *            The number of threads, 1 to run the steps on the calling thread.
+     */
+    public void setParallelism(int threads) {
+        if (tileStepper != null) {
+            tileStepper.shutdown();
+            tileStepper = null;
+        }
+        if (threads > 1) {
+            tileStepper = new TileStepper(threads);
+        }
+    }
+
+    /**
+     * Return the number of threads used to run a step.
+     * 
+     * @return the number of threads
+     */
+    public int getParallelism() {
+        return tileStepper == null ? 1 : tileStepper.getParallelism();
+    }
+
+    /**
+     * Define the seed of the random numbers, and reset the simulation to a starting position
+     * generated from that seed.
+     * 
+     * @param theSeed
+     *            The seed.
+     */
+    public void setSeed(long theSeed) {
+        seed = theSeed;
+        reset();
+    }
+
+    /**
+     * Return the seed of the random numbers.
+     * 
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Define the scenario of the simulation, and reset the simulation.
+     * 
+     * @param theScenario
+     *            The creation probabilities and the viruses of the simulation.
+     */
+    public void setScenario(Scenario theScenario) {
+        scenario = theScenario;
+        reset();
+    }
+
+    /**
+     * @return The scenario of the simulation.
+     */
+    public Scenario getScenario() {
+        return scenario;
+    }
+
+    /**
+     * Return the current step of the simulation.
+     * 
+     * @return the current step
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * Return the map of the simulation.
+     * 
+     * @return the map
+     */
+    public Map getMap() {
+        return map;
+    }
+
     /**
      * Reset the simulation to a starting position.
      */
     public void reset() {
         step = 0;
-        livingEntities.clear();
         for (SimulatorView view : views) {
             view.reset();
         }
@@ -153,12 +417,130 @@ public class Simulator {
         updateViews();
     }
 
+    /**
+     * Save the current state of the map in a world snapshot, so that it can be loaded later
+     * instead of populating the map again (see loadWorldSnapshot).
+     * 
+     * @param path
+     *            The path of the world snapshot, replaced if it exists.
+     * @throws IOException
+     *            If the file can not be written.
+     */
+    public void saveWorldSnapshot(Path path) throws IOException {
+        try (WorldSnapshot world = WorldSnapshot.create(path, map.getWidth(), map.getDepth(), map.getNeighbourhoodType())) {
+            world.write(map);
+        }
+    }
+
+    /**
+     * Replace the map by a world snapshot, without populating it. The whole world is read on
+     * the heap, as if it had been populated. The simulation goes on from the step of the saved
+     * world, the viruses of the scenario being used for the infected entities.
+     * 
+     * @param path
+     *            The path of the world snapshot.
+     * @throws IOException
+     *            If the file can not be read.
+     */
+    public void loadWorldSnapshot(Path path) throws IOException {
+        try (WorldSnapshot world = WorldSnapshot.open(path)) {
+            if (world.getWidth() != map.getWidth() || world.getDepth() != map.getDepth()
+                    || world.getNeighbourhoodType() != map.getNeighbourhoodType()) {
+                map = new Map(world.getWidth(), world.getDepth(), world.getNeighbourhoodType());
+                map.getEntityStore().setEventSink(eventSink);
+            }
+            map.setSeed(seed);
+            world.read(map, scenario.getH1N1Virus(), scenario.getH5N1Virus());
+            step = world.getStep();
+        }
+        updateViews();
+    }
+
+    /**
+     * Report the infections and the health status transitions to an event sink (see
+     * EventLog), or stop reporting them. The initial infections are only reported when
+     * the map is populated after the sink is defined (see reset).
+     * 
+     * @param theEventSink
+     *            The event sink, or null for none.
+     */
+    public void setEventSink(EventSink theEventSink) {
+        eventSink = theEventSink;
+        map.getEntityStore().setEventSink(eventSink);
+    }
+
+    /**
+     * Write a checkpoint of the simulation in the background every given number of steps,
+     * replacing the previous one (see CheckpointWriter), or stop writing checkpoints.
+     * 
+     * @param path
+     *            The path of the checkpoint file, or null to stop writing checkpoints.
+     * @param interval
+     *            The number of steps between two checkpoints.
+     * @throws IOException
+     *            If the previous checkpoints could not be written.
+     */
+    public void setCheckpoints(Path path, int interval) throws IOException {
+        if (checkpointWriter != null) {
+            CheckpointWriter previous = checkpointWriter;
+            checkpointWriter = null;
+            previous.close();
+        }
+        if (path != null) {
+            checkpointWriter = new CheckpointWriter(path);
+            checkpointInterval = Math.max(1, interval);
+        }
+    }
+
+    /**
+     * Replace the state of the simulation by the one of a checkpoint file, the simulation
+     * going on exactly as the one it was captured from. The scenario must be the same.
+     * 
+     * @param path
+     *            The path of the checkpoint file.
+     * @throws IOException
+     *            If the file can not be read.
+     */
+    public void restore(Path path) throws IOException {
+        Checkpoint.read(path).restore(this);
+    }
+
+    /**
+     * Write the whole state of the simulation (see Checkpoint).
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(map.getWidth());
+        out.writeInt(map.getDepth());
+        out.writeInt(map.getNeighbourhoodType().ordinal());
+        out.writeInt(step);
+        out.writeLong(seed);
+        map.writeState(out);
+    }
+
+    /**
+     * Replace the state of the simulation by the one written by writeState.
+     */
+    void readState(DataInput in) throws IOException {
+        int width = in.readInt();
+        int depth = in.readInt();
+        NeighbourhoodType neighbourhoodType = NeighbourhoodType.values()[in.readInt()];
+        if (width != map.getWidth() || depth != map.getDepth() || neighbourhoodType != map.getNeighbourhoodType()) {
+            map = new Map(width, depth, neighbourhoodType);
+            map.getEntityStore().setEventSink(eventSink);
+        }
+        step = in.readInt();
+        seed = in.readLong();
+        map.readState(in, scenario.getH1N1Virus(), scenario.getH5N1Virus());
+        updateViews();
+    }
+
     /**
      * Update all existing views.
      */
     private void updateViews() {
-        for (SimulatorView view : views) {
-            view.showStatus(step, map);
+        // Indexed loop, as an iterator would be allocated at each step
+        for (int i = 0; i < views.size(); i++) {
+            views.get(i).showStatus(step, map);
         }
     }
 
@@ -166,26 +548,34 @@ public class Simulator {
      * Randomly populate the field with foxes and rabbits.
      */
     private void populate() {
-        Random rand = new Random();
-        H5N1Virus h5n1=new H5N1Virus();
-        H1N1Virus h1n1=new H1N1Virus();
+        RandomStream rand = new RandomStream(RandomStream.key(seed, -2));
+        long pigCreation = scenario.getThreshold(Scenario.Parameter.PIG_CREATION_PROBABILITY);
+        long chickenCreation = scenario.getThreshold(Scenario.Parameter.CHICKEN_CREATION_PROBABILITY);
+        long duckCreation = scenario.getThreshold(Scenario.Parameter.DUCK_CREATION_PROBABILITY);
+        long personCreation = scenario.getThreshold(Scenario.Parameter.PERSON_CREATION_PROBABILITY);
+        long pigInfection = scenario.getThreshold(Scenario.Parameter.PIG_INITIALINFECTION_PROBABILITY);
+        long chickenInfection = scenario.getThreshold(Scenario.Parameter.CHICKEN_INITIALINFECTION_PROBABILITY);
+        long duckInfection = scenario.getThreshold(Scenario.Parameter.DUCK_INITIALINFECTION_PROBABILITY);
+        Virus h5n1=scenario.getH5N1Virus();
+        Virus h1n1=scenario.getH1N1Virus();
         map.clear();
+        map.setSeed(seed);
         for (int y = 0; y < map.getDepth(); y++) {
             for (int x = 0; x < map.getWidth(); x++) {
 
-                if (rand.nextDouble() <= PIG_CREATION_PROBABILITY) {
+                if (rand.nextBelow(pigCreation)) {
                     Pig pig=new Pig(map);
-                    if (rand.nextDouble() <= PIG_INITIALINFECTION_PROBABILITY) pig.becomeSick(h1n1);
+                    if (rand.nextBelow(pigInfection)) pig.becomeSick(h1n1);
                     placeLivingEntity(pig,x,y);
-                } else if (rand.nextDouble() <= CHICKEN_CREATION_PROBABILITY) {
+                } else if (rand.nextBelow(chickenCreation)) {
                     Chicken chicken=new Chicken(map);
-                    if (rand.nextDouble() <= CHICKEN_INITIALINFECTION_PROBABILITY) chicken.becomeSick(h5n1);
+                    if (rand.nextBelow(chickenInfection)) chicken.becomeSick(h5n1);
                     placeLivingEntity(chicken,x,y);
-                } else if (rand.nextDouble() <= DUCK_CREATION_PROBABILITY) {
+                } else if (rand.nextBelow(duckCreation)) {
                     Duck duck=new Duck(map);
-                    if (rand.nextDouble() <= DUCK_INITIALINFECTION_PROBABILITY) duck.becomeSick(h5n1);
+                    if (rand.nextBelow(duckInfection)) duck.becomeSick(h5n1);
                     placeLivingEntity(duck,x,y);
-                } else if (rand.nextDouble() <= PERSON_CREATION_PROBABILITY) {
+                } else if (rand.nextBelow(personCreation)) {
                     Person person=new Person(map);
                     placeLivingEntity(person,x,y);
                 }
@@ -194,11 +584,12 @@ public class Simulator {
     }
 
     private void placeLivingEntity(LivingEntity theLivingEntity, int x, int y){
-        livingEntities.add(theLivingEntity);
-        theLivingEntity.setLocation(new Location(x,y));
+        theLivingEntity.setLocation(x,y);
     }
 
     private void speed() throws InterruptedException{
+        // No pause when running headless
+        if (gV == null) return;
         String speed = gV.getSpeed();
         if(speed.equals("SLOW")) Thread.sleep(1000);
         else if(speed.equals("MEDIUM")) Thread.sleep(500);
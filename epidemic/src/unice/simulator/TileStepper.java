@@ -0,0 +1,139 @@
+package unice.simulator;
+
+import unice.livingEntities.EntityStore;
+import unice.map.Map;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs synchronous steps of a map on several threads.
+ * The tiles are the chunks allocated by the map, and the active living entities of each tile act in a task
+ * of a ForkJoinPool, idle threads stealing the tiles of the busy ones. The chunks without active entities
+ * are skipped. As the steps are synchronous,
+ * the entities only read the map as it was at the beginning of the step, and their moves and
+ * infections, even across two tiles, are applied at the end of the step (see Map). Using the
+ * random stream of each entity, the result only depends on the seed, not on the number of threads.
+ *
+ * @author Romain Chaudron
+ */
+public class TileStepper {
+    private ForkJoinPool pool;
+
+    // Ids of the active entities, sorted by tile, and index of the first entity of each tile.
+    private int[] activeIds = new int[0];
+    private int[] sortedIds = new int[0];
+    private int[] tileStart = new int[0];
+
+    /**
+     * Create a stepper using the given number of threads.
+     *
+     * @param parallelism
+     *            The number of threads.
+     */
+    public TileStepper(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Return the number of threads used.
+     *
+     * @return the number of threads
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Let all the living entities of the map act, during one synchronous step.
+     *
+     * @param map
+     *            The map to step.
+     */
+    public void step(Map map) {
+        EntityStore store = map.getEntityStore();
+        int tiles = Math.max(1, map.getChunkCount());
+
+        // Sort the active entities by tile (counting sort)
+        if (activeIds.length < store.getActiveCount()) {
+            activeIds = new int[store.getActiveCount() * 2];
+            sortedIds = new int[activeIds.length];
+        }
+        if (tileStart.length < tiles + 1) {
+            tileStart = new int[tiles + 1];
+        } else {
+            Arrays.fill(tileStart, 0, tiles + 1, 0);
+        }
+        int activeCount = store.copyActive(activeIds);
+        for (int i = 0; i < activeCount; i++) {
+            tileStart[tileOf(map, activeIds[i]) + 1]++;
+        }
+        for (int tile = 0; tile < tiles; tile++) {
+            tileStart[tile + 1] += tileStart[tile];
+        }
+        for (int i = 0; i < activeCount; i++) {
+            int tile = tileOf(map, activeIds[i]);
+            // tileStart[tile] is used as a cursor, and ends as the start of the next tile
+            sortedIds[tileStart[tile]++] = activeIds[i];
+        }
+        System.arraycopy(tileStart, 0, tileStart, 1, tiles);
+        tileStart[0] = 0;
+
+        map.beginSynchronousStep();
+        pool.invoke(new TileTask(store, 0, tiles));
+        map.endSynchronousStep();
+    }
+
+    /**
+     * Return the tile of an entity, ie the chunk of its location, tile 0 for the entities without location.
+     */
+    private int tileOf(Map map, int id) {
+        EntityStore store = map.getEntityStore();
+        if (!store.hasLocation(id)) return 0;
+        return map.getChunkIndex(map.getCellIndex(store.getX(id), store.getY(id)));
+    }
+
+    /**
+     * Stop the threads of the stepper.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * A task letting the active entities of a range of tiles act. The range is split in two
+     * halves until there is only one tile left. Ranges without active entities are skipped.
+     */
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private EntityStore store;
+        private int firstTile;
+        private int lastTile;
+
+        TileTask(EntityStore theStore, int theFirstTile, int theLastTile) {
+            store = theStore;
+            firstTile = theFirstTile;
+            lastTile = theLastTile;
+        }
+
+        @Override
+        protected void compute() {
+            int first = tileStart[firstTile];
+            int last = tileStart[lastTile];
+            if (first == last) return;
+
+            if (lastTile - firstTile > 1) {
+                int middle = (firstTile + lastTile) >>> 1;
+                invokeAll(new TileTask(store, firstTile, middle),
+                        new TileTask(store, middle, lastTile));
+                return;
+            }
+
+            for (int i = first; i < last; i++) {
+                store.act(sortedIds[i]);
+            }
+        }
+    }
+}
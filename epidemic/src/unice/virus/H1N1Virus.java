@@ -8,14 +8,21 @@ import unice.livingEntities.Pig;
  * Class representing the H1N1 Virus
  */
 public class H1N1Virus extends Virus {
+    // Default periods (in steps) and rates of the virus, also the defaults of the Scenario parameters
+    public static final int INCUBATION_PERIOD = 5;
+    public static final int CONTAGIOUS_PERIOD = 10;
+    public static final int RECOVERY_PERIOD = 3;
+    public static final double INFECTION_RATE = 0.3;
+    public static final double MORTALITY_RATE = 0.15;
+
     public H1N1Virus(){
 
         super("H1N1");
-        setIncubationPeriod(5);
-        setContagiousPeriod(10);
-        setRecoveryPeriod(3);
-        setInfectionRate(0.3);
-        setMortalityRate(0.15);
+        setIncubationPeriod(INCUBATION_PERIOD);
+        setContagiousPeriod(CONTAGIOUS_PERIOD);
+        setRecoveryPeriod(RECOVERY_PERIOD);
+        setInfectionRate(INFECTION_RATE);
+        setMortalityRate(MORTALITY_RATE);
         addTargetEntities(Pig.class);
         addTargetEntities(Human.class);
     }
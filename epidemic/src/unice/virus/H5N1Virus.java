@@ -8,13 +8,20 @@ import unice.livingEntities.Human;
  * Class representing the H5N1 Virus
  */
 public class H5N1Virus extends Virus {
+    // Default periods (in steps) and rates of the virus, also the defaults of the Scenario parameters
+    public static final int INCUBATION_PERIOD = 10;
+    public static final int CONTAGIOUS_PERIOD = 3;
+    public static final int RECOVERY_PERIOD = 5;
+    public static final double INFECTION_RATE = 0.2;
+    public static final double MORTALITY_RATE = 0.9;
+
     public H5N1Virus(){
         super("H5N1");
-        setIncubationPeriod(10);
-        setContagiousPeriod(3);
-        setRecoveryPeriod(5);
-        setInfectionRate(0.2);
-        setMortalityRate(0.9);
+        setIncubationPeriod(INCUBATION_PERIOD);
+        setContagiousPeriod(CONTAGIOUS_PERIOD);
+        setRecoveryPeriod(RECOVERY_PERIOD);
+        setInfectionRate(INFECTION_RATE);
+        setMortalityRate(MORTALITY_RATE);
         addTargetEntities(Bird.class);
         addTargetEntities(Human.class);
     }
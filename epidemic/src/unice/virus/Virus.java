@@ -1,6 +1,8 @@
 package unice.virus;
 
 import unice.livingEntities.LivingEntity;
+import unice.livingEntities.Species;
+import unice.random.RandomStream;
 
 import java.util.ArrayList;
 
@@ -15,7 +17,12 @@ public class Virus {
     private int recoveryPeriod;     // Time to go from Recovering to Healthy
     private Double infectionRate;      // Infection Rate (from 0 to 1) representing the chance for a Healthy LivingEntity to become sick when in contact with a Contagious Entity
     private Double mortalityRate;      // Mortality Rate (from 0 to 1) representing the chance for a Contagious LivingEntity to die
+    private long infectionThreshold;   // Infection Rate as a threshold for random longs (see RandomStream.toThreshold)
+    private long mortalityThreshold;   // Mortality Rate as a threshold for random longs (see RandomStream.toThreshold)
     private ArrayList<Class> targetEntities=new ArrayList<>(); // List of species that can be infected by this Virus
+    // Species that can be infected, one bit by species id, for the species registered when it was computed
+    private final long[] susceptibility = new long[(Species.MAX_SPECIES + 63) / 64];
+    private volatile int resolvedSpecies;  // Number of species whose bit is computed
     /**
      * Basic constructor
      * @param theName the Virus name
@@ -42,6 +49,22 @@ public class Virus {
         setMortalityRate(theMortalityRate);
     }
 
+    /**
+     * Returns a copy of this virus, infecting the same species, with other periods and rates.
+     * The virus itself is not changed, so that it can be shared by simulations running at the same time.
+     * @param theIncubationPeriod
+     * @param theContagiousPeriod
+     * @param theRecoveryPeriod
+     * @param theInfectionRate
+     * @param theMortalityRate
+     * @return the new virus
+     */
+    public Virus withParameters(int theIncubationPeriod, int theContagiousPeriod, int theRecoveryPeriod, double theInfectionRate, double theMortalityRate){
+        Virus copy=new Virus(name,theIncubationPeriod,theContagiousPeriod,theRecoveryPeriod,theInfectionRate,theMortalityRate);
+        copy.targetEntities.addAll(targetEntities);
+        return copy;
+    }
+
     /**
      * Returns the Virus name
      * @return the Virus name
@@ -108,6 +131,15 @@ public class Virus {
      */
     protected void setInfectionRate(Double theInfectionRate) {
         infectionRate = theInfectionRate;
+        infectionThreshold = RandomStream.toThreshold(theInfectionRate);
+    }
+
+    /**
+     * Return the Infection Rate as a threshold, to be compared with a random long using RandomStream.isBelow
+     * @return the Infection threshold
+     */
+    public long getInfectionThreshold() {
+        return infectionThreshold;
     }
 
     /**
@@ -124,6 +156,15 @@ public class Virus {
      */
     protected void setMortalityRate(Double theMortalityRate) {
         mortalityRate = theMortalityRate;
+        mortalityThreshold = RandomStream.toThreshold(theMortalityRate);
+    }
+
+    /**
+     * Return the Mortality Rate as a threshold, to be compared with a random long using RandomStream.isBelow
+     * @return the Mortality threshold
+     */
+    public long getMortalityThreshold() {
+        return mortalityThreshold;
     }
 
     /**
@@ -132,6 +173,7 @@ public class Virus {
      */
     protected void addTargetEntities(Class livingEntity){
         targetEntities.add(livingEntity);
+        resolvedSpecies = 0;
     }
 
     /**
@@ -143,18 +185,39 @@ public class Virus {
      */
     public boolean canInfectEntity(LivingEntity livingEntity){
         if (livingEntity==null) return false;
+        return canInfectSpecies(livingEntity.getSpeciesId());
+    }
 
-        boolean canInfect=false;
-        // Loop on all species that can be infected by the Virus
-        for (Class targetEntity: targetEntities) {
-            // Check if the specified livingEntity is either identical or a child of the LivingEntities the Virus can target
-            canInfect=targetEntity.isAssignableFrom(livingEntity.getClass());
+    /**
+     * Check if the entities of a species can be infected by this virus (see canInfectEntity). The targets of
+     * the virus are resolved once for each species, so that the check is a single bit test.
+     * @param speciesId the id of the species (see Species.getId)
+     * @return true if the entities of the species can be infected by the virus. False otherwise.
+     */
+    public boolean canInfectSpecies(int speciesId){
+        if (speciesId >= resolvedSpecies) resolveSpecies();
+        return (susceptibility[speciesId >>> 6] & (1L << speciesId)) != 0;
+    }
 
-            if (canInfect) break;
+    /**
+     * Compute the bit of each registered species, checking if it is either explicitely a target of the
+     * Virus (ex: Pig if Pig has been added as a Virus target), or a child of a target of the Virus (ex: Duck
+     * if Bird has been specified as a target of the Virus). The bits are only ever set, as targets are only added.
+     */
+    private synchronized void resolveSpecies(){
+        int count = Species.count();
+        if (count <= resolvedSpecies) return;
+        for (int speciesId = 0; speciesId < count; speciesId++) {
+            Species species = Species.get(speciesId);
+            // Loop on all species that can be infected by the Virus
+            for (int i = 0; i < targetEntities.size(); i++) {
+                if (species.isA(targetEntities.get(i))) {
+                    susceptibility[speciesId >>> 6] |= 1L << speciesId;
+                    break;
+                }
+            }
         }
-
-        return canInfect;
-
+        resolvedSpecies = count;
     }
 
 }
@@ -0,0 +1,78 @@
+package unice.display;
+
+import unice.livingEntities.LivingEntity;
+import unice.map.Map;
+import unice.map.NeighbourhoodType;
+import unice.simulator.Scenario;
+import unice.simulator.Simulator;
+
+/**
+ * Checks that the snapshots reused by a render loop, which only copy the chunks of the map changed
+ * since their previous capture, hold the same cells as the map after each step, once a cell is
+ * emptied, once the map is cleared, and once the snapshot captures another map. Without persons, the
+ * entities do not move, so that most chunks only change by the health status of their entities.
+ * Usage: java unice.display.StepSnapshotTest, the exit code being 1 if a check fails.
+ *
+ * @author Romain Chaudron
+ */
+public class StepSnapshotTest {
+    private static final int WIDTH = 500;
+    private static final int DEPTH = 400;
+    private static final int STEPS = 60;
+
+    private static boolean passed = true;
+
+    public static void main(String[] args) {
+        Scenario withoutPersons = Scenario.DEFAULT.with(Scenario.Parameter.PERSON_CREATION_PROBABILITY, 0);
+        Simulator simulator = new Simulator(DEPTH, WIDTH, NeighbourhoodType.HEIGHT, null, 5, withoutPersons);
+        // Three snapshots used in turn, as by a render loop
+        StepSnapshot[] snapshots = new StepSnapshot[3];
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = new StepSnapshot(true, WIDTH, DEPTH);
+        }
+        for (int i = 0; i < STEPS; i++) {
+            simulator.simulateOneStep();
+            StepSnapshot snapshot = snapshots[i % snapshots.length];
+            snapshot.capture(simulator.getStep(), simulator.getMap());
+            compare(snapshot, simulator.getMap(), "the step " + simulator.getStep());
+        }
+
+        Map map = simulator.getMap();
+        int x = WIDTH / 2;
+        while (map.getEntityAt(x, DEPTH / 2) == null) {
+            x++;
+        }
+        map.clear(x, DEPTH / 2);
+        snapshots[2].capture(simulator.getStep(), map);
+        compare(snapshots[2], map, "the capture of the emptied cell " + x + "," + DEPTH / 2);
+
+        Simulator other = new Simulator(DEPTH, WIDTH, NeighbourhoodType.HEIGHT, null, 6, Scenario.DEFAULT);
+        snapshots[0].capture(other.getStep(), other.getMap());
+        compare(snapshots[0], other.getMap(), "the capture of another map");
+
+        simulator.getMap().clear();
+        snapshots[1].capture(simulator.getStep(), simulator.getMap());
+        compare(snapshots[1], simulator.getMap(), "the capture of the cleared map");
+
+        if (!passed) System.exit(1);
+        System.out.println("OK   snapshots captured as the map, " + STEPS + " steps, an emptied cell, another map and a cleared map");
+    }
+
+    private static void compare(StepSnapshot snapshot, Map map, String capture) {
+        int wrong = 0;
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < DEPTH; y++) {
+                LivingEntity entity = map.getEntityAt(x, y);
+                if (entity == null ? snapshot.isOccupied(x, y) : !snapshot.isOccupied(x, y)
+                        || entity.getSpeciesId() != snapshot.getSpeciesId(x, y)
+                        || entity.getHealthStatus() != snapshot.getHealthStatus(x, y)) {
+                    wrong++;
+                }
+            }
+        }
+        if (wrong != 0) {
+            System.out.println("FAIL " + wrong + " cells differ from the map at " + capture);
+            passed = false;
+        }
+    }
+}
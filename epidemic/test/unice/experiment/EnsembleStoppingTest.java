@@ -0,0 +1,41 @@
+package unice.experiment;
+
+import unice.map.NeighbourhoodType;
+
+/**
+ * Checks that an ensemble stopping early keeps the same replicas whatever its number of threads: the
+ * stopping rule must be checked on the replicas in the order of their indices, not in the order in
+ * which the threads finish them.
+ * Usage: java unice.experiment.EnsembleStoppingTest, the exit code being 1 if a check fails.
+ *
+ * @author Romain Chaudron
+ */
+public class EnsembleStoppingTest {
+    private static final int[] THREADS = {1, 2, 3, 4};
+    private static final long SEED = 11;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean passed = true;
+        String expected = null;
+        for (int threads : THREADS) {
+            Ensemble ensemble = new Ensemble(20, 20, NeighbourhoodType.FOUR, 60, 200);
+            ensemble.setSeed(SEED);
+            ensemble.setThreads(threads);
+            ensemble.stopWhenNarrowerThan(EnsembleResult.PEAK_INFECTED, 10);
+            EnsembleResult result = ensemble.run();
+            String statistics = result.getStatistics(EnsembleResult.PEAK_INFECTED).toString();
+            if (result.getReplicaCount() >= 200) {
+                System.out.println("FAIL the ensemble did not stop early with " + threads + " threads");
+                passed = false;
+            }
+            if (expected == null) {
+                expected = statistics;
+            } else if (!expected.equals(statistics)) {
+                System.out.println("FAIL " + threads + " threads kept " + statistics + ", 1 thread " + expected);
+                passed = false;
+            }
+        }
+        if (!passed) System.exit(1);
+        System.out.println("OK   same replicas kept with " + THREADS.length + " thread counts: " + expected);
+    }
+}
@@ -0,0 +1,58 @@
+package unice.experiment;
+
+import unice.livingEntities.Person;
+import unice.map.NeighbourhoodType;
+import unice.simulator.Scenario;
+import unice.simulator.Simulator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Checks that the columns of a time series are read in the order of their names, and that a column
+ * named twice is rejected instead of leaving one of its two results empty.
+ * Usage: java unice.experiment.TimeSeriesReaderTest, the exit code being 1 if a check fails.
+ *
+ * @author Romain Chaudron
+ */
+public class TimeSeriesReaderTest {
+    private static final int STEPS = 30;
+    private static final String DEATHS = "Person." + TimeSeriesWriter.DEATHS;
+
+    private static boolean passed = true;
+
+    public static void main(String[] args) throws IOException {
+        Path path = Files.createTempFile("series", ".fls");
+        try {
+            Simulator simulator = new Simulator(40, 40, NeighbourhoodType.FOUR, null, 5, Scenario.DEFAULT);
+            try (TimeSeriesWriter writer = new TimeSeriesWriter(path, TimeSeriesWriter.Format.BINARY, Person.class)) {
+                for (int i = 0; i < STEPS; i++) {
+                    simulator.simulateOneStep();
+                    writer.record(simulator.getStep(), simulator.getMap().getEntityStore());
+                }
+            }
+            TimeSeriesReader reader = new TimeSeriesReader(path);
+            int[][] values = reader.readColumns(DEATHS, TimeSeriesWriter.STEP);
+            check(values[1].length == STEPS, "one record read for each step");
+            for (int i = 0; i < values[1].length; i++) {
+                check(values[1][i] == i + 1, "the step column read second holds the step " + (i + 1));
+            }
+            try {
+                reader.readColumns(TimeSeriesWriter.STEP, DEATHS, TimeSeriesWriter.STEP);
+                check(false, "a column named twice is rejected");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+        if (!passed) System.exit(1);
+        System.out.println("OK   columns read in the order of their names, a column named twice rejected");
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) System.out.println("FAIL " + description);
+        passed &= condition;
+    }
+}
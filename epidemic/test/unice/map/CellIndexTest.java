@@ -0,0 +1,45 @@
+package unice.map;
+
+/**
+ * Checks the cell indices of a 100k x 100k map: the locations outside the map are rejected without
+ * allocating any chunk, and the cells of the far corners, in chunks of coordinates above 1024, give
+ * their location back.
+ * Usage: java unice.map.CellIndexTest, the exit code being 1 if a check fails.
+ *
+ * @author Loïc
+ */
+public class CellIndexTest {
+    private static final int SIZE = 100000;
+
+    private static boolean passed = true;
+
+    public static void main(String[] args) {
+        Map map = new Map(SIZE, SIZE, NeighbourhoodType.HEIGHT);
+        int[][] outside = {{-1, 0}, {0, -1}, {SIZE, 0}, {0, SIZE}, {Integer.MIN_VALUE, Integer.MAX_VALUE}};
+        for (int[] location : outside) {
+            try {
+                map.getCellIndex(location[0], location[1]);
+                check(false, "the location " + location[0] + "," + location[1] + " is rejected");
+            } catch (IndexOutOfBoundsException e) {
+                // Expected
+            }
+        }
+        check(map.getChunkCount() == 0, "no chunk is allocated for the locations outside the map");
+
+        int[][] inside = {{0, 0}, {SIZE - 1, SIZE - 1}, {SIZE - 1, 0}, {0, SIZE - 1}, {70000, 99999}};
+        for (int[] location : inside) {
+            long cell = map.getCellIndex(location[0], location[1]);
+            check(map.getX(cell) == location[0] && map.getY(cell) == location[1],
+                    "the cell of " + location[0] + "," + location[1] + " gives its location back");
+        }
+        check(map.getChunkCount() == inside.length, "one chunk is allocated for each location inside the map");
+
+        if (!passed) System.exit(1);
+        System.out.println("OK   cell indices of a " + SIZE + " x " + SIZE + " map");
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) System.out.println("FAIL " + description);
+        passed &= condition;
+    }
+}
@@ -0,0 +1,105 @@
+package unice.map;
+
+import unice.livingEntities.Animal;
+import unice.livingEntities.Bird;
+import unice.livingEntities.Chicken;
+import unice.livingEntities.Duck;
+import unice.livingEntities.Human;
+import unice.livingEntities.LivingEntity;
+import unice.livingEntities.Person;
+import unice.livingEntities.Pig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that the layers of the species groups can be added while other threads read them: each
+ * round populates a new map, starts threads reading the layers of all the groups, and adds the
+ * layers of the groups one after the other meanwhile. A reader must never get a layer that a chunk
+ * does not have yet, and the bits of a layer must match the entities of the map.
+ * Usage: java unice.map.SpeciesLayerTest, the exit code being 1 if a check fails.
+ *
+ * @author Loïc
+ */
+public class SpeciesLayerTest {
+    private static final Class<?>[] GROUPS = {Person.class, Pig.class, Chicken.class, Duck.class,
+            Bird.class, Animal.class, Human.class, LivingEntity.class};
+    private static final int SIZE = 200;
+    private static final int ROUNDS = 50;
+    private static final int READERS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int round = 0; round < ROUNDS && failure.get() == null; round++) {
+            Map map = populate(round);
+            List<Thread> readers = new ArrayList<>();
+            for (int i = 0; i < READERS; i++) {
+                int index = i;
+                Thread reader = new Thread(() -> {
+                    try {
+                        readLayers(map, index);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                readers.add(reader);
+                reader.start();
+            }
+            for (Class<?> group : GROUPS) {
+                map.getSpeciesLayer(group);
+                Thread.yield();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        if (failure.get() != null) {
+            failure.get().printStackTrace();
+            System.exit(1);
+        }
+        System.out.println("OK   species layers added concurrently, " + ROUNDS + " rounds");
+    }
+
+    /**
+     * Create a map with an entity in a cell out of three, of a species depending on the cell.
+     */
+    private static Map populate(int round) {
+        Map map = new Map(SIZE, SIZE, NeighbourhoodType.HEIGHT);
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                LivingEntity entity;
+                switch ((x * 31 + y * 17 + round) % 12) {
+                    case 0: entity = new Person(map); break;
+                    case 1: entity = new Pig(map); break;
+                    case 2: entity = new Chicken(map); break;
+                    case 3: entity = new Duck(map); break;
+                    default: entity = null;
+                }
+                if (entity != null) entity.setLocation(x, y);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Read the layers of all the groups, starting from a different group in each reader, so that
+     * the layers are added by the readers too, checking their bits against the entities of the cells.
+     */
+    private static void readLayers(Map map, int reader) {
+        for (int i = 0; i < GROUPS.length; i++) {
+            Class<?> group = GROUPS[(reader + i) % GROUPS.length];
+            int layer = map.getSpeciesLayer(group);
+            for (int x = reader; x < SIZE; x += READERS) {
+                for (int y = 0; y < SIZE; y++) {
+                    long cell = map.getCellIndex(x, y);
+                    boolean expected = group.isInstance(map.getEntityAt(cell));
+                    if (map.isSpeciesAt(cell, layer) != expected) {
+                        throw new AssertionError("Layer of " + group.getSimpleName() + " wrong at " + x + "," + y);
+                    }
+                    map.getSpeciesNeighbourMask(cell, layer);
+                }
+            }
+        }
+    }
+}
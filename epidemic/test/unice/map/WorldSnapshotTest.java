@@ -0,0 +1,112 @@
+package unice.map;
+
+import unice.events.EventLog;
+import unice.events.EventReader;
+import unice.livingEntities.EntityStore;
+import unice.livingEntities.HealthStatusType;
+import unice.livingEntities.Species;
+import unice.simulator.Scenario;
+import unice.simulator.Simulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Checks that a world saved during an outbreak is read back as it was: the census of each species,
+ * dead entities included, the infections, and the state of the entity of each cell, random stream
+ * included. Reading the world must not report any event to the event log of the simulation.
+ * Usage: java unice.map.WorldSnapshotTest, the exit code being 1 if a check fails.
+ *
+ * @author Loïc
+ */
+public class WorldSnapshotTest {
+    private static final int SIZE = 60;
+    private static final int STEPS = 40;
+    private static final long SEED = 7;
+
+    private static boolean passed = true;
+
+    public static void main(String[] args) throws IOException {
+        Path path = Files.createTempFile("world", ".flw");
+        try {
+            Simulator saved = new Simulator(SIZE, SIZE, NeighbourhoodType.FOUR, null, SEED, Scenario.DEFAULT);
+            for (int i = 0; i < STEPS; i++) {
+                saved.simulateOneStep();
+            }
+            saved.saveWorldSnapshot(path);
+            EntityStore savedStore = saved.getMap().getEntityStore();
+            check(savedStore.count(HealthStatusType.DEAD) > 0, "the saved world has dead entities");
+
+            Simulator loaded = new Simulator(SIZE, SIZE, NeighbourhoodType.FOUR, null, SEED, Scenario.DEFAULT);
+            ByteArrayOutputStream events = new ByteArrayOutputStream();
+            try (EventLog log = new EventLog(events)) {
+                loaded.setEventSink(log);
+                loaded.loadWorldSnapshot(path);
+                loaded.setEventSink(null);
+            }
+            check(countEvents(events) == 0, "reading the world reports no event");
+            check(loaded.getStep() == saved.getStep(), "the step is read");
+
+            EntityStore loadedStore = loaded.getMap().getEntityStore();
+            for (int i = 0; i < Species.count(); i++) {
+                Species species = Species.get(i);
+                for (HealthStatusType status : HealthStatusType.values()) {
+                    check(loadedStore.count(species, status) == savedStore.count(species, status),
+                            "the number of " + species + " " + status + " is read");
+                }
+                check(loadedStore.countInfections(species) == savedStore.countInfections(species),
+                        "the infections of " + species + " are read");
+            }
+            checkCells(saved.getMap(), loaded.getMap());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+        if (!passed) System.exit(1);
+        System.out.println("OK   world read back as saved");
+    }
+
+    /**
+     * Check that each cell holds an entity of the same species and state in both maps.
+     */
+    private static void checkCells(Map saved, Map loaded) {
+        EntityStore savedStore = saved.getEntityStore();
+        EntityStore loadedStore = loaded.getEntityStore();
+        int mismatches = 0;
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                if (saved.getEntityAt(x, y) == null || loaded.getEntityAt(x, y) == null) {
+                    if (saved.getEntityAt(x, y) != loaded.getEntityAt(x, y)) mismatches++;
+                    continue;
+                }
+                int savedId = saved.getEntityAt(x, y).getId();
+                int loadedId = loaded.getEntityAt(x, y).getId();
+                if (savedStore.getSpecies(savedId) != loadedStore.getSpecies(loadedId)
+                        || savedStore.getHealthStatus(savedId) != loadedStore.getHealthStatus(loadedId)
+                        || savedStore.getVirus(savedId) != loadedStore.getVirus(loadedId)
+                        || savedStore.getDueStep(savedId) != loadedStore.getDueStep(loadedId)
+                        || savedStore.getRandomState(savedId) != loadedStore.getRandomState(loadedId)) {
+                    mismatches++;
+                }
+            }
+        }
+        check(mismatches == 0, "the entities of the cells are read (" + mismatches + " mismatches)");
+    }
+
+    private static int countEvents(ByteArrayOutputStream events) throws IOException {
+        int count = 0;
+        try (EventReader reader = new EventReader(new ByteArrayInputStream(events.toByteArray()))) {
+            while (reader.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) System.out.println("FAIL " + description);
+        passed &= condition;
+    }
+}
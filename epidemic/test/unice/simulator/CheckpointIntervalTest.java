@@ -0,0 +1,63 @@
+package unice.simulator;
+
+import unice.map.NeighbourhoodType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Checks that the periodic checkpoints are written when the simulation skips idle steps: without
+ * persons, the animals only act when contagious, so that nothing is active while the initial
+ * infections incubate, and the simulation jumps towards the end of the incubation, across
+ * checkpoint steps. Each checkpoint step must still be run, and its checkpoint written.
+ * Usage: java unice.simulator.CheckpointIntervalTest, the exit code being 1 if a check fails.
+ *
+ * @author Romain Chaudron
+ */
+public class CheckpointIntervalTest {
+    private static final int INTERVAL = 3;
+    private static final int LAST_STEP = 60;
+
+    public static void main(String[] args) throws IOException {
+        Path path = Files.createTempFile("checkpoint", ".flc");
+        Scenario withoutPersons = Scenario.DEFAULT.with(Scenario.Parameter.PERSON_CREATION_PROBABILITY, 0);
+        Simulator simulator = new Simulator(40, 40, NeighbourhoodType.FOUR, null, 5, withoutPersons);
+        boolean skipped = false;
+        boolean passed = true;
+        try {
+            simulator.setCheckpoints(path, INTERVAL);
+            int expected = INTERVAL;
+            while (simulator.getStep() < LAST_STEP) {
+                int before = simulator.getStep();
+                simulator.advance(LAST_STEP);
+                int step = simulator.getStep();
+                skipped |= step - before > 1;
+                if (step > expected) {
+                    System.out.println("FAIL the idle steps " + (before + 1) + " to " + step
+                            + " skipped the checkpoint step " + expected);
+                    passed = false;
+                } else if (step == expected) {
+                    // Wait for the checkpoint, to read it
+                    simulator.setCheckpoints(null, 0);
+                    int written = Checkpoint.read(path).getStep();
+                    if (written != step) {
+                        System.out.println("FAIL the checkpoint of the step " + step + " is the one of " + written);
+                        passed = false;
+                    }
+                    simulator.setCheckpoints(path, INTERVAL);
+                }
+                if (step >= expected) expected = (step / INTERVAL + 1) * INTERVAL;
+            }
+        } finally {
+            simulator.setCheckpoints(null, 0);
+            Files.deleteIfExists(path);
+        }
+        if (!skipped) {
+            System.out.println("FAIL no idle step was skipped");
+            passed = false;
+        }
+        if (!passed) System.exit(1);
+        System.out.println("OK   a checkpoint written at each checkpoint step, idle steps skipped");
+    }
+}
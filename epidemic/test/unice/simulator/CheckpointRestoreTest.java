@@ -0,0 +1,69 @@
+package unice.simulator;
+
+import unice.events.EventLog;
+import unice.events.EventReader;
+import unice.livingEntities.EntityStore;
+import unice.livingEntities.HealthStatusType;
+import unice.map.NeighbourhoodType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Checks that restoring a checkpoint does not report any event: the health statuses of the entities
+ * are restored, not reached by transitions. The checkpoint is captured during an outbreak, and
+ * restored in a simulation reporting its events to an event log.
+ * Usage: java unice.simulator.CheckpointRestoreTest, the exit code being 1 if a check fails.
+ *
+ * @author Romain Chaudron
+ */
+public class CheckpointRestoreTest {
+    private static final int STEPS = 40;
+
+    public static void main(String[] args) throws IOException {
+        Path path = Files.createTempFile("checkpoint", ".flc");
+        boolean passed = true;
+        try {
+            Simulator captured = new Simulator(60, 60, NeighbourhoodType.FOUR, null, 3, Scenario.DEFAULT);
+            for (int i = 0; i < STEPS; i++) {
+                captured.simulateOneStep();
+            }
+            Checkpoint.capture(captured).write(path);
+
+            Simulator restored = new Simulator(60, 60, NeighbourhoodType.FOUR, null, 3, Scenario.DEFAULT);
+            ByteArrayOutputStream events = new ByteArrayOutputStream();
+            try (EventLog log = new EventLog(events)) {
+                restored.setEventSink(log);
+                restored.restore(path);
+                restored.setEventSink(null);
+            }
+            int count = 0;
+            try (EventReader reader = new EventReader(new ByteArrayInputStream(events.toByteArray()))) {
+                while (reader.next()) {
+                    count++;
+                }
+            }
+            if (count != 0) {
+                System.out.println("FAIL restoring the checkpoint reported " + count + " events");
+                passed = false;
+            }
+
+            EntityStore expected = captured.getMap().getEntityStore();
+            EntityStore actual = restored.getMap().getEntityStore();
+            for (HealthStatusType status : HealthStatusType.values()) {
+                if (actual.count(status) != expected.count(status)) {
+                    System.out.println("FAIL " + actual.count(status) + " entities " + status + " restored, "
+                            + expected.count(status) + " captured");
+                    passed = false;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+        if (!passed) System.exit(1);
+        System.out.println("OK   checkpoint restored without events");
+    }
+}